@@ -0,0 +1,17 @@
+package org.example;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Неблокирующая задача: тело запускает операцию и сразу возвращает её завершение,
+ * не удерживая поток воркера на время ожидания ввода-вывода.
+ */
+public interface AsyncTask extends Task {
+
+    CompletionStage<Void> executeAsync(TaskParams params) throws Exception;
+
+    @Override
+    default void execute(TaskParams params) throws Exception {
+        executeAsync(params).toCompletableFuture().get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,30 @@
+package org.example;
+
+public class AutoscaleParams {
+    private final int minThreads;
+    private final int maxThreads;
+    private final long targetLagMs;
+
+    /**
+     * @param minThreads  нижняя граница числа потоков категории
+     * @param maxThreads  верхняя граница числа потоков категории
+     * @param targetLagMs допустимое отставание запуска задач от запланированного времени
+     */
+    public AutoscaleParams(int minThreads, int maxThreads, long targetLagMs) {
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.targetLagMs = targetLagMs;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public long getTargetLagMs() {
+        return targetLagMs;
+    }
+}
\ No newline at end of file
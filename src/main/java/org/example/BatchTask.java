@@ -0,0 +1,29 @@
+package org.example;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Задача, которая умеет выполнять сразу пачку однотипных задач за один вызов
+ * (например, одной bulk-записью во внешнюю систему).
+ *
+ * <p>Таймаут ({@link #getTimeoutMs()} и таймаут категории) к пачке не применяется:
+ * воркер не прерывает {@link #executeBatch}, и ограничивать время вызова должна сама задача.
+ */
+public interface BatchTask extends Task {
+
+    /**
+     * Выполняет пачку задач. Возвращает ошибки по индексам элементов пачки;
+     * элементы без ошибки считаются выполненными. Исключение из метода
+     * означает неудачу всей пачки.
+     */
+    Map<Integer, Exception> executeBatch(List<TaskParams> batch) throws Exception;
+
+    @Override
+    default void execute(TaskParams params) throws Exception {
+        Exception failure = executeBatch(List.of(params)).get(0);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
\ No newline at end of file
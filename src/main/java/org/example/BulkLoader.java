@@ -0,0 +1,542 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Загрузка задач из файла в таблицу категории для миграций и дозаливок.
+ * Файл читается потоково, по записи на строку: NDJSON с полями taskClass, params,
+ * scheduledTime, maxAttempts или CSV со столбцами task_class, params, scheduled_time
+ * и необязательным max_attempts. Пачки пишутся параллельно многострочными INSERT
+ * через {@link TaskManagerImpl#scheduleBatch}. В памяти не больше нескольких пачек
+ * на поток записи, каким бы большим ни был файл.
+ *
+ * <p>Рядом с файлом ведётся &lt;file&gt;.checkpoint: смещение в байтах, до которого
+ * все записи уже зафиксированы, и диапазоны пачек за ним, зафиксированных раньше
+ * предыдущих. Повторный запуск продолжает со смещения и пропускает эти диапазоны.
+ *
+ * <pre>java -cp target/classes org.example.BulkLoader &lt;category&gt; &lt;file&gt; [threads] [batchSize]</pre>
+ */
+public class BulkLoader {
+    private static final long PROGRESS_INTERVAL_MS = 5000;
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final TaskManagerImpl taskManager;
+    private final String category;
+    private final int threads;
+    private final int batchSize;
+
+    public BulkLoader(TaskManagerImpl taskManager, String category, int threads, int batchSize) {
+        this.taskManager = taskManager;
+        this.category = category;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Usage: BulkLoader <category> <file.ndjson|file.csv> [threads] [batchSize]");
+            System.exit(1);
+        }
+        String category = args[0];
+        if (!category.matches("[A-Za-z0-9_]{1,50}")) {
+            System.err.println("Invalid category: " + category);
+            System.exit(1);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        if (batchSize > TaskManagerImpl.MAX_BATCH_ROWS) {
+            // Больше строк не помещается в один INSERT, scheduleBatch всё равно разбил бы пачку
+            System.err.println("Batch size " + batchSize + " is capped at " + TaskManagerImpl.MAX_BATCH_ROWS);
+            batchSize = TaskManagerImpl.MAX_BATCH_ROWS;
+        }
+
+        DatabaseConnection.initializeDatabaseForCategory(category);
+        TaskManagerImpl taskManager =
+                new TaskManagerImpl(DatabaseConnection.getDataSource(DatabaseConnection.PoolRole.INGESTION));
+        long loaded = new BulkLoader(taskManager, category, threads, batchSize).load(Path.of(args[1]));
+        System.out.println("Loaded " + loaded + " tasks into deferred_" + category);
+        System.exit(0);
+    }
+
+    public static Path checkpointPath(Path file) {
+        return file.resolveSibling(file.getFileName() + ".checkpoint");
+    }
+
+    /**
+     * Загружает файл начиная с сохранённой контрольной точки
+     *
+     * @return число загруженных в этом запуске задач
+     */
+    public long load(Path file) throws IOException, InterruptedException {
+        boolean csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+        Path checkpointFile = checkpointPath(file);
+        Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+        long fileSize = Files.size(file);
+        if (checkpoint.offset > 0) {
+            System.out.printf("Resuming %s from byte %d (line %d)%n", file, checkpoint.offset, checkpoint.line);
+        }
+
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(threads * 2);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Progress progress = new Progress(checkpointFile, fileSize);
+
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            writers.submit(() -> {
+                Batch batch;
+                while ((batch = queue.take()).entries != null) {
+                    // После сбоя очередь только вычерпывается, чтобы не заблокировать чтение файла
+                    if (failure.get() != null) {
+                        continue;
+                    }
+                    try {
+                        taskManager.scheduleBatch(category, batch.entries);
+                        progress.completed(batch);
+                    } catch (RuntimeException | IOException ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+                return null;
+            });
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.position(checkpoint.offset);
+            LineReader reader = new LineReader(Channels.newInputStream(channel), checkpoint.offset);
+            Map<String, Class<Task>> classes = new HashMap<>();
+            LocalDateTime now = LocalDateTime.now();
+            long line = checkpoint.line;
+            long seq = 0;
+            long batchStart = checkpoint.offset;
+            long skipped = 0;
+            List<TaskManagerImpl.BatchEntry> entries = new ArrayList<>(batchSize);
+
+            while (failure.get() == null && reader.next()) {
+                line++;
+                if (reader.isBlank() || (csv && line == 1 && reader.text().startsWith("task_class"))) {
+                    continue;
+                }
+                if (checkpoint.isCommitted(reader.lineStart)) {
+                    skipped++;
+                    continue;
+                }
+                try {
+                    entries.add(csv ? parseCsv(reader.text(), classes, now) : parseJson(reader, classes, now));
+                } catch (IllegalArgumentException ex) {
+                    failure.compareAndSet(null, new IllegalArgumentException(
+                            "Line " + line + " (byte " + reader.lineStart + "): " + ex.getMessage(), ex));
+                    break;
+                }
+                if (entries.size() == batchSize) {
+                    queue.put(new Batch(seq++, entries, batchStart, reader.position, line));
+                    batchStart = reader.position;
+                    entries = new ArrayList<>(batchSize);
+                }
+            }
+            if (failure.get() == null) {
+                queue.put(new Batch(seq, entries, batchStart, reader.position, line));
+            }
+            if (skipped > 0) {
+                System.out.printf("Skipped %,d records committed by the previous run%n", skipped);
+            }
+        } finally {
+            for (int i = 0; i < threads; i++) {
+                queue.put(Batch.END);
+            }
+            writers.shutdown();
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        progress.report(true);
+        Throwable error = failure.get();
+        if (error != null) {
+            throw new RuntimeException("Bulk load stopped, rerun to resume from " + checkpointFile, error);
+        }
+        return progress.loaded;
+    }
+
+    /**
+     * Разбирает строку NDJSON потоковым парсером; params копируются в строку
+     * без построения дерева
+     */
+    private TaskManagerImpl.BatchEntry parseJson(LineReader reader, Map<String, Class<Task>> classes,
+                                                 LocalDateTime now) {
+        String taskClass = null;
+        String params = "{}";
+        String scheduledTime = null;
+        int maxAttempts = 1;
+        try (JsonParser parser = jsonFactory.createParser(reader.buffer, 0, reader.length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Record is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "taskClass" -> taskClass = parser.getValueAsString();
+                    case "scheduledTime" -> scheduledTime = parser.getValueAsString();
+                    case "maxAttempts" -> maxAttempts = parser.getValueAsInt(1);
+                    case "params" -> {
+                        if (value != JsonToken.VALUE_NULL) {
+                            StringWriter json = new StringWriter(reader.length);
+                            try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+                                generator.copyCurrentStructure(parser);
+                            }
+                            params = json.toString();
+                        }
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+        } catch (JsonProcessingException ex) {
+            throw new IllegalArgumentException("Malformed JSON: " + ex.getOriginalMessage());
+        } catch (IOException ex) {
+            throw new IllegalArgumentException(ex.getMessage());
+        }
+        return toEntry(taskClass, params, scheduledTime, maxAttempts, classes, now);
+    }
+
+    private TaskManagerImpl.BatchEntry parseCsv(String line, Map<String, Class<Task>> classes, LocalDateTime now) {
+        List<String> fields = splitCsv(line);
+        if (fields.size() < 2) {
+            throw new IllegalArgumentException("Expected task_class,params[,scheduled_time[,max_attempts]]");
+        }
+        String params = fields.get(1).isEmpty() ? "{}" : fields.get(1);
+        try {
+            try (JsonParser parser = jsonFactory.createParser(params)) {
+                while (parser.nextToken() != null) {
+                    // Проверка, что params - корректный JSON
+                }
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Invalid params JSON: " + ex.getMessage());
+        }
+        int maxAttempts = 1;
+        if (fields.size() > 3 && !fields.get(3).isEmpty()) {
+            try {
+                maxAttempts = Integer.parseInt(fields.get(3).trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid max_attempts: " + fields.get(3));
+            }
+        }
+        return toEntry(fields.get(0).trim(), params, fields.size() > 2 ? fields.get(2).trim() : null,
+                maxAttempts, classes, now);
+    }
+
+    /**
+     * Поля строки CSV по RFC 4180: значения в кавычках могут содержать запятые,
+     * кавычка внутри экранируется удвоением
+     */
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TaskManagerImpl.BatchEntry toEntry(String taskClass, String params, String scheduledTime,
+                                               int maxAttempts, Map<String, Class<Task>> classes,
+                                               LocalDateTime now) {
+        if (taskClass == null || taskClass.isEmpty()) {
+            throw new IllegalArgumentException("taskClass is required");
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        Class<Task> clazz = classes.get(taskClass);
+        if (clazz == null) {
+            try {
+                Class<?> resolved = Class.forName(taskClass);
+                if (!Task.class.isAssignableFrom(resolved)) {
+                    throw new IllegalArgumentException("Class " + taskClass + " does not implement Task");
+                }
+                clazz = (Class<Task>) resolved;
+                classes.put(taskClass, clazz);
+            } catch (ClassNotFoundException ex) {
+                throw new IllegalArgumentException("Unknown task class: " + taskClass);
+            }
+        }
+
+        LocalDateTime time = now;
+        if (scheduledTime != null && !scheduledTime.isEmpty()) {
+            try {
+                time = LocalDateTime.parse(scheduledTime.replace(' ', 'T'));
+            } catch (DateTimeParseException ex) {
+                throw new IllegalArgumentException("Invalid scheduled time: " + scheduledTime);
+            }
+        }
+        return new TaskManagerImpl.BatchEntry(clazz,
+                TaskParams.fromStored(params, maxAttempts, false, 0, 0), time);
+    }
+
+    /**
+     * Читает файл построчно в переиспользуемый буфер и знает смещение в байтах
+     * начала и конца каждой строки
+     */
+    private static class LineReader {
+        private final InputStream in;
+        private final byte[] chunk = new byte[1 << 16];
+        private int chunkPos;
+        private int chunkEnd;
+        byte[] buffer = new byte[8192];
+        int length;
+        long lineStart;
+        long position;
+
+        LineReader(InputStream in, long position) {
+            this.in = in;
+            this.position = position;
+        }
+
+        boolean next() throws IOException {
+            lineStart = position;
+            length = 0;
+            while (true) {
+                if (chunkPos == chunkEnd) {
+                    chunkEnd = in.read(chunk);
+                    chunkPos = 0;
+                    if (chunkEnd <= 0) {
+                        chunkEnd = 0;
+                        break;
+                    }
+                }
+                int start = chunkPos;
+                while (chunkPos < chunkEnd && chunk[chunkPos] != '\n') {
+                    chunkPos++;
+                }
+                append(start, chunkPos - start);
+                if (chunkPos < chunkEnd) {
+                    chunkPos++;
+                    position++;
+                    break;
+                }
+            }
+            if (length > 0 && buffer[length - 1] == '\r') {
+                length--;
+            }
+            return position > lineStart;
+        }
+
+        private void append(int start, int count) {
+            if (length + count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+            }
+            System.arraycopy(chunk, start, buffer, length, count);
+            length += count;
+            position += count;
+        }
+
+        boolean isBlank() {
+            for (int i = 0; i < length; i++) {
+                if (!Character.isWhitespace(buffer[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String text() {
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Batch {
+        static final Batch END = new Batch(-1, null, 0, 0, 0);
+
+        final long seq;
+        final List<TaskManagerImpl.BatchEntry> entries;
+        final long startOffset;
+        final long endOffset;
+        final long endLine;
+
+        Batch(long seq, List<TaskManagerImpl.BatchEntry> entries, long startOffset, long endOffset, long endLine) {
+            this.seq = seq;
+            this.entries = entries;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.endLine = endLine;
+        }
+    }
+
+    /**
+     * Смещение и номер строки, до которых всё загружено, и зафиксированные диапазоны
+     * [начало, конец) за этим смещением. Диапазоны всегда начинаются и кончаются на границе строк.
+     */
+    private static class Checkpoint {
+        long offset;
+        long line;
+        final TreeMap<Long, long[]> committed = new TreeMap<>();
+
+        Checkpoint(long offset, long line) {
+            this.offset = offset;
+            this.line = line;
+        }
+
+        static Checkpoint read(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return new Checkpoint(0, 0);
+            }
+            List<String> lines = Files.readAllLines(file);
+            String[] head = lines.get(0).trim().split("\\s+");
+            Checkpoint checkpoint = new Checkpoint(Long.parseLong(head[0]), head.length > 1 ? Long.parseLong(head[1]) : 0);
+            for (String range : lines.subList(1, lines.size())) {
+                String[] parts = range.trim().split("\\s+");
+                if (parts.length == 3) {
+                    checkpoint.committed.put(Long.parseLong(parts[0]),
+                            new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+                }
+            }
+            return checkpoint;
+        }
+
+        boolean isCommitted(long position) {
+            Map.Entry<Long, long[]> range = committed.floorEntry(position);
+            return range != null && position < range.getValue()[0];
+        }
+
+        /**
+         * Добавляет зафиксированный диапазон и сдвигает смещение, если диапазоны
+         * сомкнулись с ним
+         */
+        void add(long start, long end, long endLine) {
+            Map.Entry<Long, long[]> before = committed.floorEntry(start);
+            if (before != null && before.getValue()[0] >= start) {
+                start = before.getKey();
+                if (before.getValue()[0] > end) {
+                    end = before.getValue()[0];
+                    endLine = before.getValue()[1];
+                }
+            }
+            Map.Entry<Long, long[]> after;
+            while ((after = committed.ceilingEntry(start)) != null && after.getKey() <= end) {
+                committed.remove(after.getKey());
+                if (after.getValue()[0] > end) {
+                    end = after.getValue()[0];
+                    endLine = after.getValue()[1];
+                }
+            }
+            committed.put(start, new long[]{end, endLine});
+
+            Map.Entry<Long, long[]> first;
+            while ((first = committed.firstEntry()) != null && first.getKey() <= offset) {
+                committed.remove(first.getKey());
+                if (first.getValue()[0] > offset) {
+                    offset = first.getValue()[0];
+                    line = first.getValue()[1];
+                }
+            }
+        }
+
+        void write(Path file) throws IOException {
+            StringBuilder text = new StringBuilder().append(offset).append(' ').append(line).append('\n');
+            for (Map.Entry<Long, long[]> range : committed.entrySet()) {
+                text.append(range.getKey()).append(' ').append(range.getValue()[0])
+                        .append(' ').append(range.getValue()[1]).append('\n');
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tmp, text);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Пачки фиксируются в произвольном порядке. Каждая зафиксированная пачка сразу
+     * записывается в контрольную точку своим диапазоном, поэтому при продолжении
+     * повторно загружаются только пачки, прерванные до записи контрольной точки
+     */
+    private static class Progress {
+        private final Path checkpointFile;
+        private final long fileSize;
+        private final long startOffset;
+        private final long startedAt = System.currentTimeMillis();
+        private final Checkpoint checkpoint;
+        private long lastReportAt = startedAt;
+        long loaded;
+
+        /**
+         * Своя копия контрольной точки: копию в {@link #load} читает поток чтения файла
+         */
+        Progress(Path checkpointFile, long fileSize) throws IOException {
+            this.checkpointFile = checkpointFile;
+            this.checkpoint = Checkpoint.read(checkpointFile);
+            this.fileSize = fileSize;
+            this.startOffset = checkpoint.offset;
+        }
+
+        synchronized void completed(Batch batch) throws IOException {
+            loaded += batch.entries.size();
+            checkpoint.add(batch.startOffset, batch.endOffset, batch.endLine);
+            checkpoint.write(checkpointFile);
+            report(false);
+        }
+
+        synchronized void report(boolean last) {
+            long now = System.currentTimeMillis();
+            if (!last && now - lastReportAt < PROGRESS_INTERVAL_MS) {
+                return;
+            }
+            lastReportAt = now;
+            double seconds = Math.max(1, now - startedAt) / 1000.0;
+            System.out.printf("%,d tasks loaded, %.1f%% of file, %,.0f tasks/s, checkpoint at byte %d%n",
+                    loaded, fileSize > 0 ? checkpoint.offset * 100.0 / fileSize : 100.0,
+                    loaded / seconds, checkpoint.offset);
+            if (last && checkpoint.offset == startOffset && loaded == 0 && startOffset > 0) {
+                System.out.println("Nothing to load past the checkpoint; delete " + checkpointFile + " to reload");
+            }
+        }
+    }
+}
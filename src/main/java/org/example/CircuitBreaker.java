@@ -0,0 +1,229 @@
+package org.example;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+
+/**
+ * Выключатель захвата задач для категории или отдельного класса задач.
+ * Считает долю ошибок по скользящему окну последних выполнений; разомкнутый
+ * выключатель останавливает захват, а по истечении паузы пропускает несколько
+ * пробных задач, чтобы проверить, восстановилась ли внешняя система.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /** Метка task_class выключателя всей категории */
+    static final String CATEGORY_SCOPE = "*";
+
+    /** Сколько ждать исхода выданных проб, если параметры не заданы */
+    static final long DEFAULT_PROBE_TIMEOUT_MS = 30_000;
+
+    private static final Gauge circuitState = Gauge.build()
+            .name("deferred_circuit_state")
+            .help("Circuit breaker state: 0 closed, 1 half-open, 2 open")
+            .labelNames("category", "task_class")
+            .register();
+
+    private static final Counter circuitOpened = Counter.build()
+            .name("deferred_circuit_opened")
+            .help("Times a circuit breaker opened and paused claiming")
+            .labelNames("category", "task_class")
+            .register();
+
+    public enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    private final String category;
+    private final String scope;
+    private final Clock clock;
+    private CircuitBreakerParams params;
+    private State state = State.CLOSED;
+    private boolean forced;
+    private long openedAt;
+
+    private boolean[] window = new boolean[0];
+    private int windowPos;
+    private int windowCalls;
+    private int windowFailures;
+
+    private int probesIssued;
+    private int probesSucceeded;
+    private long probesIssuedAt;
+
+    CircuitBreaker(String category, String scope, CircuitBreakerParams params) {
+        this(category, scope, params, Clock.systemUTC());
+    }
+
+    CircuitBreaker(String category, String scope, CircuitBreakerParams params, Clock clock) {
+        this.category = category;
+        this.scope = scope;
+        this.clock = clock;
+        configure(params);
+        circuitState.labels(category, scope).set(0);
+    }
+
+    /**
+     * @param params параметры автоматического срабатывания; null - выключатель
+     *               управляется только оператором
+     */
+    synchronized void configure(CircuitBreakerParams params) {
+        this.params = params;
+        this.window = new boolean[params != null ? Math.max(1, params.getWindowSize()) : 0];
+        resetWindow();
+    }
+
+    /**
+     * Сколько задач из запрошенных можно захватить сейчас: все при замкнутом
+     * выключателе, ни одной при разомкнутом и не больше оставшихся проб при полуоткрытом.
+     */
+    synchronized int permits(int requested) {
+        refresh();
+        return switch (state) {
+            case CLOSED -> requested;
+            case OPEN -> 0;
+            case HALF_OPEN -> {
+                int granted = Math.max(0, Math.min(requested, probeLimit() - probesIssued));
+                if (granted > 0) {
+                    probesIssued += granted;
+                    probesIssuedAt = clock.millis();
+                }
+                yield granted;
+            }
+        };
+    }
+
+    /**
+     * Возвращает пробы, выданные {@link #permits}, но не использованные захватом
+     */
+    synchronized void releasePermits(int unused) {
+        if (state == State.HALF_OPEN) {
+            probesIssued = Math.max(probesSucceeded, probesIssued - unused);
+        }
+    }
+
+    synchronized boolean isClosed() {
+        refresh();
+        return state == State.CLOSED;
+    }
+
+    synchronized State getState() {
+        refresh();
+        return state;
+    }
+
+    synchronized void record(boolean success) {
+        switch (state) {
+            case CLOSED -> {
+                if (params == null) {
+                    return;
+                }
+                if (windowCalls == window.length) {
+                    if (window[windowPos]) {
+                        windowFailures--;
+                    }
+                } else {
+                    windowCalls++;
+                }
+                window[windowPos] = !success;
+                if (!success) {
+                    windowFailures++;
+                }
+                windowPos = (windowPos + 1) % window.length;
+
+                if (windowFailures > 0 && windowCalls >= params.getMinCalls()
+                        && windowFailures >= params.getFailureRateThreshold() * windowCalls) {
+                    open(false);
+                }
+            }
+            case HALF_OPEN -> {
+                if (!success) {
+                    open(false);
+                } else if (++probesSucceeded >= probeLimit()) {
+                    close();
+                }
+            }
+            case OPEN -> {
+                // Исходы задач, захваченных до размыкания, не учитываются
+            }
+        }
+    }
+
+    /**
+     * Ручное управление: OPEN держит выключатель разомкнутым до явного CLOSED,
+     * HALF_OPEN сразу запускает пробы, CLOSED возобновляет захват.
+     */
+    synchronized void force(State target) {
+        switch (target) {
+            case OPEN -> open(true);
+            case HALF_OPEN -> halfOpen();
+            case CLOSED -> close();
+        }
+        logger.warn("Circuit {} of category {} set to {} by operator", scope, category, target);
+    }
+
+    private void refresh() {
+        if (state == State.OPEN && !forced && params != null
+                && clock.millis() - openedAt >= params.getOpenDurationMs()) {
+            halfOpen();
+        } else if (state == State.HALF_OPEN && probesIssued > probesSucceeded
+                && clock.millis() - probesIssuedAt >= probeTimeoutMs()) {
+            // Пробы, которые не дали исхода (отменены, возвращены при остановке), выдаются заново,
+            // иначе выключатель навсегда остался бы полуоткрытым без проб
+            logger.warn("Circuit {} of category {}: {} probes did not report in {} ms, probing again",
+                    scope, category, probesIssued - probesSucceeded, probeTimeoutMs());
+            probesIssued = probesSucceeded;
+        }
+    }
+
+    private void open(boolean forced) {
+        if (state != State.OPEN) {
+            circuitOpened.labels(category, scope).inc();
+            logger.warn("Circuit {} of category {} opened, failures {} of {}",
+                    scope, category, windowFailures, windowCalls);
+        }
+        this.state = State.OPEN;
+        this.forced = forced;
+        this.openedAt = clock.millis();
+        circuitState.labels(category, scope).set(2);
+    }
+
+    private void halfOpen() {
+        state = State.HALF_OPEN;
+        forced = false;
+        probesIssued = 0;
+        probesSucceeded = 0;
+        circuitState.labels(category, scope).set(1);
+        logger.info("Circuit {} of category {} half-open, probing with {} tasks", scope, category, probeLimit());
+    }
+
+    private void close() {
+        if (state != State.CLOSED) {
+            logger.info("Circuit {} of category {} closed, claiming resumed", scope, category);
+        }
+        state = State.CLOSED;
+        forced = false;
+        resetWindow();
+        circuitState.labels(category, scope).set(0);
+    }
+
+    private void resetWindow() {
+        windowPos = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+    }
+
+    private long probeTimeoutMs() {
+        return params != null ? params.getOpenDurationMs() : DEFAULT_PROBE_TIMEOUT_MS;
+    }
+
+    private int probeLimit() {
+        return params != null ? Math.max(1, params.getHalfOpenProbes()) : 1;
+    }
+}
@@ -0,0 +1,49 @@
+package org.example;
+
+public class CircuitBreakerParams {
+    private final double failureRateThreshold;
+    private final int windowSize;
+    private final int minCalls;
+    private final long openDurationMs;
+    private final int halfOpenProbes;
+
+    public CircuitBreakerParams() {
+        this(0.5, 50, 20, 30000, 3);
+    }
+
+    /**
+     * @param failureRateThreshold доля ошибок в окне, при которой выключатель размыкается
+     * @param windowSize           число последних выполнений, по которым считается доля ошибок
+     * @param minCalls             минимум выполнений в окне, прежде чем выключатель может разомкнуться
+     * @param openDurationMs       сколько захват остаётся остановленным до пробных запусков
+     * @param halfOpenProbes       число пробных задач; все должны пройти успешно, чтобы захват возобновился
+     */
+    public CircuitBreakerParams(double failureRateThreshold, int windowSize, int minCalls,
+                                long openDurationMs, int halfOpenProbes) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.windowSize = windowSize;
+        this.minCalls = minCalls;
+        this.openDurationMs = openDurationMs;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getMinCalls() {
+        return minCalls;
+    }
+
+    public long getOpenDurationMs() {
+        return openDurationMs;
+    }
+
+    public int getHalfOpenProbes() {
+        return halfOpenProbes;
+    }
+}
@@ -2,39 +2,119 @@ package org.example;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.prometheus.PrometheusMetricsTrackerFactory;
 import javax.sql.DataSource;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 
 public class DatabaseConnection {
-    private static final HikariDataSource dataSource;
+    private static final String CONFIG_PROPERTY = "db.config";
+    private static final String CONFIG_RESOURCE = "database.properties";
+
+    /**
+     * Назначение пула соединений. У каждой роли свой пул, чтобы всплеск одной
+     * нагрузки (например, массовый schedule) не выбирал соединения у захвата задач.
+     */
+    public enum PoolRole {
+        INGESTION, CLAIM, OUTCOME, ADMIN
+    }
+
+    private static final String[] REQUIRED_COLUMNS = {
+            "id", "category", "task_class", "params", "status",
+            "scheduled_time", "next_attempt_time", "max_attempts",
+            "exponential_backoff", "backoff_base", "max_backoff_ms",
+            "attempt_count", "created_at", "completed_at", "idempotency_key",
+            "coalesce_key", "param_keys"
+    };
+
+    /**
+     * Столбцы и индексы, добавленные после первой версии схемы: имя и определение
+     */
+    private static final String[][] UPGRADE_COLUMNS = {
+            {"idempotency_key", "VARCHAR(255) NULL"},
+            {"coalesce_key", "VARCHAR(255) NULL"},
+            {"param_keys", "JSON NULL"}
+    };
+    private static final String[][] UPGRADE_INDEXES = {
+            {"uk_idempotency_key", "UNIQUE INDEX uk_idempotency_key (idempotency_key)"},
+            {"idx_coalesce", "INDEX idx_coalesce (coalesce_key, status)"},
+            {"idx_status_scheduled", "INDEX idx_status_scheduled (status, scheduled_time)"}
+    };
+
+    private static final Map<PoolRole, HikariDataSource> dataSources = new EnumMap<>(PoolRole.class);
 
     static {
-        HikariConfig config = new HikariConfig();
-        config.setJdbcUrl("jdbc:mysql://localhost:3306/testdb");
-        config.setUsername("appuser");
-        config.setPassword("password");
-        config.setMaximumPoolSize(10);
-        config.setConnectionTimeout(30000);
-        config.setLeakDetectionThreshold(60000);
+        Properties properties = loadProperties();
+        MetricsTrackerFactory metricsTrackerFactory = new PrometheusMetricsTrackerFactory();
+
+        for (PoolRole role : PoolRole.values()) {
+            String prefix = "db.pool." + role.name().toLowerCase() + ".";
+
+            HikariConfig config = new HikariConfig();
+            config.setPoolName("deferred-" + role.name().toLowerCase());
+            config.setJdbcUrl(properties.getProperty("db.url", "jdbc:mysql://localhost:3306/testdb"));
+            config.setUsername(properties.getProperty("db.username", "appuser"));
+            config.setPassword(properties.getProperty("db.password", "password"));
+            config.setMaximumPoolSize(Integer.parseInt(properties.getProperty(prefix + "size", "10")));
+            config.setConnectionTimeout(Long.parseLong(properties.getProperty(prefix + "connection-timeout-ms", "30000")));
+            config.setLeakDetectionThreshold(60000);
+            config.setMetricsTrackerFactory(metricsTrackerFactory);
+
+            // Дополнительные настройки для улучшения производительности
+            config.addDataSourceProperty("cachePrepStmts", "true");
+            config.addDataSourceProperty("prepStmtCacheSize", "250");
+            config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+            config.addDataSourceProperty("useServerPrepStmts", "true");
 
-        // Дополнительные настройки для улучшения производительности
-        config.addDataSourceProperty("cachePrepStmts", "true");
-        config.addDataSourceProperty("prepStmtCacheSize", "250");
-        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
-        config.addDataSourceProperty("useServerPrepStmts", "true");
+            dataSources.put(role, new HikariDataSource(config));
+        }
+    }
 
-        dataSource = new HikariDataSource(config);
+    /**
+     * Читает настройки из файла, указанного в -Ddb.config, иначе из database.properties
+     * в classpath. Отсутствующие ключи берутся по умолчанию.
+     */
+    private static Properties loadProperties() {
+        Properties properties = new Properties();
+        String path = System.getProperty(CONFIG_PROPERTY);
+        try (InputStream in = path != null
+                ? new FileInputStream(path)
+                : DatabaseConnection.class.getClassLoader().getResourceAsStream(CONFIG_RESOURCE)) {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read database configuration " +
+                    (path != null ? path : CONFIG_RESOURCE), e);
+        }
+        return properties;
     }
 
     public static Connection getConnection() throws SQLException {
-        return dataSource.getConnection();
+        return getDataSource().getConnection();
     }
 
     public static DataSource getDataSource() {
-        return dataSource;
+        return getDataSource(PoolRole.ADMIN);
+    }
+
+    public static DataSource getDataSource(PoolRole role) {
+        return dataSources.get(role);
     }
 
     public static void initializeDatabaseForCategory(String category) throws SQLException {
@@ -55,10 +135,16 @@ public class DatabaseConnection {
                 attempt_count INT NOT NULL DEFAULT 0,
                 created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
                 completed_at TIMESTAMP NULL,
+                idempotency_key VARCHAR(255) NULL,
+                coalesce_key VARCHAR(255) NULL,
+                param_keys JSON NULL,
                 INDEX idx_status (status),
+                INDEX idx_status_scheduled (status, scheduled_time),
                 INDEX idx_scheduled (scheduled_time),
                 INDEX idx_next_attempt (next_attempt_time),
-                INDEX idx_created (created_at)
+                INDEX idx_created (created_at),
+                UNIQUE INDEX uk_idempotency_key (idempotency_key),
+                INDEX idx_coalesce (coalesce_key, status)
             ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci
             """, tableName);
 
@@ -69,6 +155,95 @@ public class DatabaseConnection {
 
             stmt.execute(String.format("ALTER TABLE %s COMMENT 'Таблица для отложенных задач категории %s'", tableName, category));
         }
+
+        upgradeTableForCategory(category);
+    }
+
+    /**
+     * Доводит таблицу категории, созданную старой версией, до актуальной схемы
+     */
+    public static void upgradeTableForCategory(String category) throws SQLException {
+        upgradeTables(List.of(category));
+    }
+
+    /**
+     * Доводит таблицы категорий до актуальной схемы. Текущие столбцы и индексы всех
+     * таблиц читаются двумя запросами к information_schema, а недостающее добавляется
+     * одним ALTER TABLE на таблицу.
+     */
+    public static void upgradeTables(Collection<String> categories) throws SQLException {
+        try (Connection conn = getConnection()) {
+            Map<String, Set<String>> columns = loadTableColumns(conn);
+            Map<String, Set<String>> indexes = loadTableIndexes(conn);
+
+            for (String category : categories) {
+                String tableName = "deferred_" + category;
+                alterMissing(conn, tableName, columns.getOrDefault(tableName, Set.of()),
+                        indexes.getOrDefault(tableName, Set.of()), UPGRADE_COLUMNS, UPGRADE_INDEXES);
+
+                String dlqTable = DeadLetterQueue.tableName(category);
+                if (!columns.containsKey(dlqTable)) {
+                    DeadLetterQueue.createTableIfNotExists(conn, category);
+                } else {
+                    alterMissing(conn, dlqTable, columns.get(dlqTable), indexes.getOrDefault(dlqTable, Set.of()),
+                            DeadLetterQueue.UPGRADE_COLUMNS, DeadLetterQueue.UPGRADE_INDEXES);
+                }
+                if (!columns.containsKey(TaskPayloads.tableName(category))) {
+                    TaskPayloads.createTableIfNotExists(conn, category);
+                }
+            }
+            StatusCounters.createTableIfNotExists(conn);
+        }
+    }
+
+    /**
+     * Добавляет в таблицу недостающие столбцы и индексы одним ALTER TABLE
+     */
+    private static void alterMissing(Connection conn, String tableName, Set<String> tableColumns,
+                                     Set<String> tableIndexes, String[][] upgradeColumns,
+                                     String[][] upgradeIndexes) throws SQLException {
+        List<String> alterations = new ArrayList<>();
+        for (String[] column : upgradeColumns) {
+            if (!tableColumns.contains(column[0])) {
+                alterations.add("ADD COLUMN " + column[0] + " " + column[1]);
+            }
+        }
+        for (String[] index : upgradeIndexes) {
+            if (!tableIndexes.contains(index[0])) {
+                alterations.add("ADD " + index[1]);
+            }
+        }
+
+        if (!alterations.isEmpty()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("ALTER TABLE " + tableName + " " + String.join(", ", alterations));
+            }
+        }
+    }
+
+    /**
+     * Столбцы всех таблиц deferred_* текущей схемы одним запросом; имена в нижнем регистре
+     */
+    public static Map<String, Set<String>> loadTableColumns(Connection conn) throws SQLException {
+        return loadSchemaNames(conn, "SELECT TABLE_NAME, COLUMN_NAME FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME LIKE 'deferred\\_%'");
+    }
+
+    private static Map<String, Set<String>> loadTableIndexes(Connection conn) throws SQLException {
+        return loadSchemaNames(conn, "SELECT TABLE_NAME, INDEX_NAME FROM information_schema.STATISTICS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME LIKE 'deferred\\_%'");
+    }
+
+    private static Map<String, Set<String>> loadSchemaNames(Connection conn, String sql) throws SQLException {
+        Map<String, Set<String>> names = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                names.computeIfAbsent(rs.getString(1), t -> new HashSet<>())
+                        .add(rs.getString(2).toLowerCase());
+            }
+        }
+        return names;
     }
 
     /**
@@ -87,25 +262,32 @@ public class DatabaseConnection {
      * Проверяет наличие всех необходимых столбцов в таблице
      */
     public static void validateTableStructure(String category) throws SQLException {
-        String tableName = "deferred_" + category;
-        String[] requiredColumns = {
-                "id", "category", "task_class", "params", "status",
-                "scheduled_time", "next_attempt_time", "max_attempts",
-                "exponential_backoff", "backoff_base", "max_backoff_ms",
-                "attempt_count", "created_at", "completed_at"
-        };
+        String error = validateTableStructures(List.of(category)).get(category);
+        if (error != null) {
+            throw new SQLException(error);
+        }
+    }
 
+    /**
+     * Проверяет таблицы сразу нескольких категорий одним запросом к information_schema.
+     * Возвращает описание проблемы для каждой категории, не прошедшей проверку.
+     */
+    public static Map<String, String> validateTableStructures(Collection<String> categories) throws SQLException {
+        Map<String, String> errors = new HashMap<>();
         try (Connection conn = getConnection()) {
-            DatabaseMetaData meta = conn.getMetaData();
-
-            for (String column : requiredColumns) {
-                try (var rs = meta.getColumns(null, null, tableName, column)) {
-                    if (!rs.next()) {
-                        throw new SQLException(String.format(
+            Map<String, Set<String>> columns = loadTableColumns(conn);
+            for (String category : categories) {
+                String tableName = "deferred_" + category;
+                Set<String> tableColumns = columns.getOrDefault(tableName, Set.of());
+                for (String column : REQUIRED_COLUMNS) {
+                    if (!tableColumns.contains(column)) {
+                        errors.put(category, String.format(
                                 "Столбец %s отсутствует в таблице %s", column, tableName));
+                        break;
                     }
                 }
             }
         }
+        return errors;
     }
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+package org.example;
+
+import io.prometheus.client.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Таблица окончательно упавших задач deferred_&lt;category&gt;_dlq и их повторный запуск.
+ * Задача попадает сюда вместо статуса FAILED вместе с последней ошибкой и хешем
+ * её стека, по которому удобно группировать однотипные падения.
+ */
+public class DeadLetterQueue {
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterQueue.class);
+
+    static final int MAX_ERROR_LENGTH = 4000;
+    private static final int HASHED_FRAMES = 20;
+
+    private static final Counter replayedTasks = Counter.build()
+            .name("deferred_dlq_replayed")
+            .help("Dead-lettered tasks moved back to PENDING")
+            .labelNames("category")
+            .register();
+
+    private final DataSource dataSource;
+
+    public DeadLetterQueue(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Столбцы и индексы DLQ, добавленные после первой версии схемы: имя и определение
+     */
+    static final String[][] UPGRADE_COLUMNS = {
+            {"param_keys", "JSON NULL"}
+    };
+    static final String[][] UPGRADE_INDEXES = {
+            {"idx_dlq_scheduled", "INDEX idx_dlq_scheduled (scheduled_time, id)"},
+            {"idx_dlq_idempotency", "INDEX idx_dlq_idempotency (idempotency_key)"}
+    };
+
+    static String tableName(String category) {
+        return "deferred_" + category + "_dlq";
+    }
+
+    public static void createTableIfNotExists(Connection conn, String category) throws SQLException {
+        String sql = String.format("""
+            CREATE TABLE IF NOT EXISTS %s (
+                id BIGINT PRIMARY KEY,
+                category VARCHAR(50) NOT NULL,
+                task_class VARCHAR(255) NOT NULL,
+                params TEXT NOT NULL,
+                param_keys JSON NULL,
+                scheduled_time TIMESTAMP NOT NULL,
+                max_attempts INT NOT NULL,
+                exponential_backoff BOOLEAN NOT NULL,
+                backoff_base DOUBLE NOT NULL,
+                max_backoff_ms BIGINT NOT NULL,
+                attempt_count INT NOT NULL,
+                created_at TIMESTAMP NULL,
+                idempotency_key VARCHAR(255) NULL,
+                coalesce_key VARCHAR(255) NULL,
+                failed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                last_error TEXT NULL,
+                error_hash CHAR(16) NULL,
+                INDEX idx_dlq_class (task_class),
+                INDEX idx_dlq_error (error_hash),
+                INDEX idx_dlq_failed (failed_at),
+                INDEX idx_dlq_scheduled (scheduled_time, id),
+                INDEX idx_dlq_idempotency (idempotency_key)
+            ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci
+            """, tableName(category));
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    /**
+     * Текст последней ошибки, обрезанный до размера столбца
+     */
+    static String errorMessage(Throwable error) {
+        String message = error.toString();
+        return message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message;
+    }
+
+    /**
+     * Хеш типа ошибки и верхних кадров стека без номеров строк: одинаковые падения
+     * дают одинаковый хеш и после пересборки кода
+     */
+    static String errorHash(Throwable error) {
+        StringBuilder signature = new StringBuilder(error.getClass().getName());
+        StackTraceElement[] stack = error.getStackTrace();
+        for (int i = 0; i < Math.min(HASHED_FRAMES, stack.length); i++) {
+            signature.append('|').append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(signature.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public long count(String category) {
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + tableName(category))) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException ex) {
+            throw new RuntimeException("Failed to count dead-lettered tasks", ex);
+        }
+    }
+
+    /**
+     * Возвращает подходящие задачи из DLQ в PENDING порциями по chunkSize, каждая порция
+     * отдельной транзакцией, не быстрее tasksPerSecond, чтобы массовый повтор не забил
+     * воркеров и индекс захвата. Счётчик попыток обнуляется.
+     *
+     * @param errorHash хеш ошибки из столбца error_hash; null - любые ошибки
+     * @return число возвращённых задач
+     */
+    public long replay(String category, TaskFilter filter, String errorHash, int chunkSize, double tasksPerSecond) {
+        String dlqTable = tableName(category);
+        String taskTable = "deferred_" + category;
+        String select = "SELECT id FROM " + dlqTable + " WHERE id > ?" + filter.toSqlCondition() +
+                (errorHash != null ? " AND error_hash = ?" : "") +
+                " ORDER BY id LIMIT ? FOR UPDATE";
+        List<Object> filterParameters = filter.toSqlParameters();
+        long chunkNanos = tasksPerSecond > 0 ? (long) (chunkSize / tasksPerSecond * 1_000_000_000L) : 0;
+
+        long lastId = 0;
+        long replayed = 0;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            while (true) {
+                long chunkStart = System.nanoTime();
+                List<Long> ids = new ArrayList<>(chunkSize);
+                int moved;
+                try {
+                    try (PreparedStatement stmt = conn.prepareStatement(select)) {
+                        int index = 1;
+                        stmt.setLong(index++, lastId);
+                        for (Object parameter : filterParameters) {
+                            stmt.setObject(index++, parameter);
+                        }
+                        if (errorHash != null) {
+                            stmt.setString(index++, errorHash);
+                        }
+                        stmt.setInt(index, chunkSize);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next()) {
+                                ids.add(rs.getLong(1));
+                            }
+                        }
+                    }
+                    if (ids.isEmpty()) {
+                        StatusCounters.commit(conn);
+                        break;
+                    }
+
+                    moved = moveChunk(conn, category, taskTable, dlqTable, ids);
+                    StatusCounters.commit(conn);
+                } catch (SQLException ex) {
+                    StatusCounters.rollback(conn);
+                    throw ex;
+                }
+
+                lastId = ids.get(ids.size() - 1);
+                replayed += moved;
+                replayedTasks.labels(category).inc(moved);
+                logger.info("Replayed {} dead-lettered tasks of category {} ({} total)", moved, category, replayed);
+
+                long pause = chunkNanos - (System.nanoTime() - chunkStart);
+                if (pause > 0) {
+                    TimeUnit.NANOSECONDS.sleep(pause);
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException("Failed to replay dead-lettered tasks after " + replayed + " rows", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.warn("Replay of category {} interrupted after {} tasks", category, replayed);
+        }
+        return replayed;
+    }
+
+    /**
+     * Переносит порцию в таблицу категории. Строки, которые не удалось вставить
+     * (например, ключ идемпотентности уже занят новой задачей), остаются в DLQ.
+     */
+    private int moveChunk(Connection conn, String category, String taskTable, String dlqTable,
+                          List<Long> ids) throws SQLException {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+
+        String insert = "INSERT IGNORE INTO " + taskTable +
+                " (id, category, task_class, params, param_keys, status, scheduled_time, max_attempts," +
+                " exponential_backoff, backoff_base, max_backoff_ms, attempt_count, created_at, idempotency_key," +
+                " coalesce_key)" +
+                " SELECT id, category, task_class, params, param_keys, 'PENDING', ?, max_attempts," +
+                " exponential_backoff, backoff_base, max_backoff_ms, 0, created_at, idempotency_key, coalesce_key" +
+                " FROM " + dlqTable + " WHERE id IN (" + placeholders + ")";
+        try (PreparedStatement stmt = conn.prepareStatement(insert)) {
+            stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+            for (int i = 0; i < ids.size(); i++) {
+                stmt.setLong(i + 2, ids.get(i));
+            }
+            stmt.executeUpdate();
+        }
+
+        String delete = "DELETE d FROM " + dlqTable + " d JOIN " + taskTable + " t ON t.id = d.id" +
+                " WHERE t.status = 'PENDING' AND d.id IN (" + placeholders + ")";
+        int moved;
+        try (PreparedStatement stmt = conn.prepareStatement(delete)) {
+            for (int i = 0; i < ids.size(); i++) {
+                stmt.setLong(i + 1, ids.get(i));
+            }
+            moved = stmt.executeUpdate();
+        }
+        StatusCounters.transition(conn, category, "FAILED", "PENDING", moved);
+        return moved;
+    }
+}
@@ -0,0 +1,233 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Хранилище задач в памяти для {@link Simulation}: те же переходы статусов, что у
+ * {@link JdbcTaskStore}, без базы. Ожидающие задачи захватываются в порядке
+ * scheduled_time, при равном времени - по id. Завершённые и упавшие задачи
+ * не хранятся, от них остаются только счётчики.
+ */
+public class InMemoryTaskStore implements TaskStore {
+    private static final Comparator<Row> DUE_ORDER =
+            Comparator.comparingLong((Row row) -> row.scheduledMillis).thenComparingLong(row -> row.id);
+
+    private final Map<String, CategoryRows> categories = new HashMap<>();
+    private long nextId;
+    private long claims;
+    private long emptyClaims;
+    private long completed;
+    private long retried;
+    private long deadLettered;
+
+    /**
+     * Добавляет ожидающую задачу, как {@link TaskManagerImpl#schedule}
+     *
+     * @return id задачи
+     */
+    public synchronized long add(String category, String taskClass, TaskParams params, long scheduledMillis) {
+        CategoryRows rows = rowsOf(category);
+        Row row = new Row(++nextId, taskClass, params, scheduledMillis);
+        rows.rows.put(row.id, row);
+        rows.pending.add(row);
+        rows.count("PENDING", 1);
+        return row.id;
+    }
+
+    @Override
+    public Map<String, String> validate(List<String> categories) {
+        return Map.of();
+    }
+
+    @Override
+    public synchronized List<TaskData> claim(String category, int limit, long nowMillis,
+                                             List<String> excludedClasses, String onlyClass) {
+        CategoryRows rows = rowsOf(category);
+        List<TaskData> tasks = new ArrayList<>(Math.min(limit, rows.pending.size()));
+        Iterator<Row> due = rows.pending.iterator();
+        while (tasks.size() < limit && due.hasNext()) {
+            Row row = due.next();
+            if (row.scheduledMillis > nowMillis) {
+                break;
+            }
+            if (excludedClasses.contains(row.taskClass) || (onlyClass != null && !onlyClass.equals(row.taskClass))) {
+                continue;
+            }
+            due.remove();
+            row.processing = true;
+            tasks.add(row.toTaskData(category));
+        }
+        rows.count("PENDING", -tasks.size());
+        rows.count("PROCESSING", tasks.size());
+        claims++;
+        if (tasks.isEmpty()) {
+            emptyClaims++;
+        }
+        return tasks;
+    }
+
+    @Override
+    public synchronized long nextDueMillis(String category) {
+        CategoryRows rows = rowsOf(category);
+        return rows.pending.isEmpty() ? 0 : rows.pending.first().scheduledMillis;
+    }
+
+    /**
+     * Параметры в памяти не выносятся, поэтому сюда задачи не попадают
+     */
+    @Override
+    public String loadOffloadedParams(TaskData task) {
+        throw new IllegalStateException("In-memory store does not offload params of task " + task.getId());
+    }
+
+    @Override
+    public synchronized boolean complete(TaskData task) {
+        if (removeProcessing(task) == null) {
+            return false;
+        }
+        rowsOf(task.getCategory()).count("COMPLETED", 1);
+        completed++;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean retry(TaskData task, int nextAttempt, long nextAttemptMillis) {
+        CategoryRows rows = rowsOf(task.getCategory());
+        Row row = rows.rows.get(task.getId());
+        if (row == null || !row.processing) {
+            return false;
+        }
+        row.processing = false;
+        row.attemptCount = nextAttempt;
+        row.scheduledMillis = nextAttemptMillis;
+        rows.pending.add(row);
+        rows.count("PROCESSING", -1);
+        rows.count("PENDING", 1);
+        retried++;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deadLetter(TaskData task, Exception error) {
+        if (removeProcessing(task) == null) {
+            return false;
+        }
+        rowsOf(task.getCategory()).count("FAILED", 1);
+        deadLettered++;
+        return true;
+    }
+
+    @Override
+    public synchronized int returnUnstarted(String category, List<Long> taskIds) {
+        CategoryRows rows = rowsOf(category);
+        int returned = 0;
+        for (Long taskId : taskIds) {
+            Row row = rows.rows.get(taskId);
+            if (row != null && row.processing) {
+                row.processing = false;
+                rows.pending.add(row);
+                returned++;
+            }
+        }
+        rows.count("PROCESSING", -returned);
+        rows.count("PENDING", returned);
+        return returned;
+    }
+
+    /**
+     * Счётчики в памяти всегда точны, сверка только возвращает их
+     */
+    @Override
+    public synchronized Map<String, Long> reconcileCounters(String category) {
+        return new LinkedHashMap<>(rowsOf(category).counts);
+    }
+
+    @Override
+    public int connectionLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+    public synchronized long getClaims() {
+        return claims;
+    }
+
+    public synchronized long getEmptyClaims() {
+        return emptyClaims;
+    }
+
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Повторы, записанные в хранилище; локальные повторы воркера сюда не попадают
+     */
+    public synchronized long getRetried() {
+        return retried;
+    }
+
+    public synchronized long getDeadLettered() {
+        return deadLettered;
+    }
+
+    private Row removeProcessing(TaskData task) {
+        CategoryRows rows = rowsOf(task.getCategory());
+        Row row = rows.rows.get(task.getId());
+        if (row == null || !row.processing) {
+            return null;
+        }
+        rows.rows.remove(row.id);
+        rows.count("PROCESSING", -1);
+        return row;
+    }
+
+    private CategoryRows rowsOf(String category) {
+        return categories.computeIfAbsent(category, c -> new CategoryRows());
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryTaskStore" + categories.keySet();
+    }
+
+    private static class CategoryRows {
+        final Map<Long, Row> rows = new HashMap<>();
+        final TreeSet<Row> pending = new TreeSet<>(DUE_ORDER);
+        final Map<String, Long> counts = new LinkedHashMap<>();
+
+        void count(String status, long delta) {
+            if (delta != 0) {
+                counts.merge(status, delta, Long::sum);
+            }
+        }
+    }
+
+    private static class Row {
+        final long id;
+        final String taskClass;
+        final TaskParams params;
+        long scheduledMillis;
+        int attemptCount;
+        boolean processing;
+
+        Row(long id, String taskClass, TaskParams params, long scheduledMillis) {
+            this.id = id;
+            this.taskClass = taskClass;
+            this.params = params;
+            this.scheduledMillis = scheduledMillis;
+        }
+
+        TaskData toTaskData(String category) {
+            return new TaskData(id, category, taskClass, params.getJsonData(), scheduledMillis,
+                    params.getMaxAttempts(), params.isExponentialBackoff(), params.getBackoffBase(),
+                    params.getMaxBackoffMs(), attemptCount);
+        }
+    }
+}
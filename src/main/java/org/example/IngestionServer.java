@@ -0,0 +1,438 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP-приём задач: POST /tasks/&lt;category&gt; с одной задачей в JSON или пачкой
+ * в NDJSON (по объекту на строку). Задачи всех одновременных запросов складываются
+ * в общую очередь, откуда потоки записи забирают всё накопленное и вставляют одним
+ * многострочным INSERT на категорию. Ответ {"ids":[...]} уходит после фиксации транзакции.
+ *
+ * <p>Поля задачи: taskClass (обязательно), params, scheduledTime (ISO) или delayMs,
+ * maxAttempts, exponentialBackoff, backoffBase, maxBackoffMs, idempotencyKey.
+ * Задачи с ключом идемпотентности планируются по одной через {@link TaskManagerImpl#schedule}.
+ *
+ * <p>Строки проверяются при разборе, до попадания в общую пачку. Если пачка всё же не
+ * записалась, запросы из неё пишутся по отдельности, и ошибку получает только запрос
+ * с неподходящей строкой.
+ */
+public class IngestionServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(IngestionServer.class);
+
+    public static final String PORT_PROPERTY = "ingest.port";
+    public static final String FLUSH_THREADS_PROPERTY = "ingest.flush-threads";
+    public static final String MAX_BATCH_PROPERTY = "ingest.max-batch";
+    public static final String QUEUE_SIZE_PROPERTY = "ingest.queue-size";
+    public static final String HANDLER_THREADS_PROPERTY = "ingest.handler-threads";
+
+    private static final String PATH_PREFIX = "/tasks/";
+    private static final Pattern CATEGORY_PATTERN = Pattern.compile("[A-Za-z0-9_]{1,50}");
+    private static final long RESPONSE_TIMEOUT_MS = 30_000;
+    /** Границы столбца TIMESTAMP с запасом в сутки на часовой пояс сессии */
+    private static final LocalDateTime MIN_SCHEDULED_TIME = LocalDateTime.of(1970, 1, 2, 0, 0);
+    private static final LocalDateTime MAX_SCHEDULED_TIME = LocalDateTime.of(2038, 1, 18, 0, 0);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final Counter ingestedTasks = Counter.build()
+            .name("deferred_ingested_tasks")
+            .help("Tasks scheduled through the HTTP endpoint")
+            .labelNames("category")
+            .register();
+
+    private static final Counter rejectedRequests = Counter.build()
+            .name("deferred_ingest_rejected")
+            .help("HTTP ingestion requests rejected")
+            .labelNames("reason")
+            .register();
+
+    private static final Histogram batchSize = Histogram.build()
+            .name("deferred_ingest_batch_size")
+            .help("Tasks written by one multi-row insert")
+            .buckets(1, 5, 10, 25, 50, 100, 250, 500, 1000)
+            .register();
+
+    private final TaskManagerImpl taskManager;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ExecutorService flushers;
+    private final BlockingQueue<Submission> queue;
+    /** Свободные места в очереди; запрос резервирует их целиком до постановки задач */
+    private final Semaphore queueSlots;
+    private final int queueSize;
+    private final int maxBatch;
+    private final Map<String, Class<Task>> taskClasses = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    public IngestionServer(TaskManagerImpl taskManager, int port) throws IOException {
+        this(taskManager, port,
+                Integer.getInteger(FLUSH_THREADS_PROPERTY, 4),
+                Integer.getInteger(MAX_BATCH_PROPERTY, 500),
+                Integer.getInteger(QUEUE_SIZE_PROPERTY, 50_000),
+                Integer.getInteger(HANDLER_THREADS_PROPERTY, 64));
+    }
+
+    /**
+     * @param flushThreads   число одновременных транзакций записи
+     * @param maxBatch       наибольшее число задач в одном INSERT
+     * @param queueSize      сколько задач может ждать записи; сверх этого запросы получают 503,
+     *                       а запрос, в котором задач больше queueSize, - 413
+     * @param handlerThreads сколько запросов обрабатывается одновременно; остальные ждут свободного потока
+     */
+    public IngestionServer(TaskManagerImpl taskManager, int port, int flushThreads, int maxBatch,
+                           int queueSize, int handlerThreads) throws IOException {
+        this.taskManager = taskManager;
+        this.maxBatch = maxBatch;
+        this.queueSize = queueSize;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.queueSlots = new Semaphore(queueSize);
+
+        this.flushers = Executors.newFixedThreadPool(flushThreads, r -> {
+            Thread thread = new Thread(r, "ingest-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < flushThreads; i++) {
+            flushers.submit(this::flushLoop);
+        }
+
+        // Потоков не больше handlerThreads: медленные клиенты ждут в очереди, а не плодят потоки
+        this.handlers = Executors.newFixedThreadPool(handlerThreads, r -> {
+            Thread thread = new Thread(r, "ingest-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext(PATH_PREFIX, this::handle);
+        server.setExecutor(handlers);
+        server.start();
+        logger.info("Ingestion endpoint listening on port {}", port);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            process(exchange);
+        }
+    }
+
+    private void process(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, error("Only POST is supported"));
+                return;
+            }
+            String category = exchange.getRequestURI().getPath().substring(PATH_PREFIX.length());
+            if (!CATEGORY_PATTERN.matcher(category).matches()) {
+                rejectedRequests.labels("bad_request").inc();
+                respond(exchange, 400, error("Invalid category: " + category));
+                return;
+            }
+
+            List<TaskManagerImpl.BatchEntry> entries;
+            List<String> idempotencyKeys = new ArrayList<>();
+            try {
+                entries = parse(exchange.getRequestBody(), idempotencyKeys);
+            } catch (IllegalArgumentException | IOException ex) {
+                rejectedRequests.labels("bad_request").inc();
+                respond(exchange, 400, error(ex.getMessage()));
+                return;
+            }
+
+            int queued = 0;
+            for (String idempotencyKey : idempotencyKeys) {
+                if (idempotencyKey == null) {
+                    queued++;
+                }
+            }
+            if (queued > queueSize) {
+                // Такой запрос не поместится в очередь никогда, повторять его бессмысленно
+                rejectedRequests.labels("too_large").inc();
+                respond(exchange, 413, error("Request carries " + queued + " tasks, at most " +
+                        queueSize + " are accepted at once"));
+                return;
+            }
+            // Либо в очередь встаёт весь запрос, либо ничего: иначе клиент получит 503,
+            // а часть задач всё равно запишется и при повторе задвоится
+            if (!running || !queueSlots.tryAcquire(queued)) {
+                rejectedRequests.labels("overloaded").inc();
+                respond(exchange, 503, error("Ingestion queue is full, retry later"));
+                return;
+            }
+
+            List<CompletableFuture<Long>> futures = new ArrayList<>(entries.size());
+            Object request = new Object();
+            try {
+                for (int i = 0; i < entries.size(); i++) {
+                    TaskManagerImpl.BatchEntry entry = entries.get(i);
+                    String idempotencyKey = idempotencyKeys.get(i);
+                    if (idempotencyKey != null) {
+                        futures.add(CompletableFuture.completedFuture(taskManager.schedule(category, entry.clazz,
+                                entry.params.withIdempotencyKey(idempotencyKey), entry.time)));
+                        continue;
+                    }
+                    Submission submission = new Submission(category, entry, request);
+                    // Место зарезервировано семафором, поэтому add не откажет
+                    queue.add(submission);
+                    queued--;
+                    futures.add(submission.result);
+                }
+            } finally {
+                // Если schedule() упал посреди запроса, неиспользованный резерв возвращается
+                queueSlots.release(queued);
+            }
+
+            long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT_MS;
+            StringBuilder body = new StringBuilder(16 + futures.size() * 12).append("{\"ids\":[");
+            for (int i = 0; i < futures.size(); i++) {
+                long wait = Math.max(1, deadline - System.currentTimeMillis());
+                body.append(i == 0 ? "" : ",").append(futures.get(i).get(wait, TimeUnit.MILLISECONDS));
+            }
+            respond(exchange, 200, body.append("]}").toString());
+        } catch (ExecutionException ex) {
+            logger.error("Failed to schedule tasks received over HTTP", ex.getCause());
+            respond(exchange, 500, error("Failed to schedule tasks"));
+        } catch (TimeoutException ex) {
+            respond(exchange, 504, error("Tasks were not written in time"));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, error("Server is shutting down"));
+        } catch (RuntimeException ex) {
+            logger.error("Failed to schedule tasks received over HTTP", ex);
+            respond(exchange, 500, error("Failed to schedule tasks"));
+        }
+    }
+
+    /**
+     * Разбирает тело запроса: один объект или последовательность объектов через перевод строки
+     */
+    private List<TaskManagerImpl.BatchEntry> parse(InputStream body, List<String> idempotencyKeys) throws IOException {
+        List<TaskManagerImpl.BatchEntry> entries = new ArrayList<>();
+        LocalDateTime now = LocalDateTime.now();
+        try (MappingIterator<JsonNode> items = objectMapper.readerFor(JsonNode.class).readValues(body)) {
+            while (items.hasNextValue()) {
+                JsonNode item = items.nextValue();
+                if (!item.isObject()) {
+                    throw new IllegalArgumentException("Task " + entries.size() + " is not a JSON object");
+                }
+                entries.add(toEntry(item, now));
+                JsonNode key = item.get("idempotencyKey");
+                idempotencyKeys.add(key != null && !key.isNull() ? key.asText() : null);
+            }
+        } catch (JsonProcessingException ex) {
+            throw new IllegalArgumentException("Malformed JSON: " + ex.getOriginalMessage());
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("No tasks in request body");
+        }
+        return entries;
+    }
+
+    private TaskManagerImpl.BatchEntry toEntry(JsonNode item, LocalDateTime now) {
+        JsonNode className = item.get("taskClass");
+        if (className == null || !className.isTextual()) {
+            throw new IllegalArgumentException("taskClass is required");
+        }
+        Class<Task> clazz = resolveTaskClass(className.asText());
+
+        JsonNode params = item.get("params");
+        String json = params == null || params.isNull() ? "{}" : params.toString();
+
+        LocalDateTime time = now;
+        if (item.hasNonNull("scheduledTime")) {
+            try {
+                time = LocalDateTime.parse(item.get("scheduledTime").asText());
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException("Invalid scheduledTime: " + item.get("scheduledTime").asText());
+            }
+        } else if (item.hasNonNull("delayMs")) {
+            time = now.plusNanos(TimeUnit.MILLISECONDS.toNanos(item.get("delayMs").asLong()));
+        }
+        // Время вне диапазона TIMESTAMP уронило бы INSERT всей общей пачки
+        if (time.isBefore(MIN_SCHEDULED_TIME) || time.isAfter(MAX_SCHEDULED_TIME)) {
+            throw new IllegalArgumentException("Scheduled time " + time + " is out of range");
+        }
+
+        int maxAttempts = item.path("maxAttempts").asInt(1);
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        // JSON уже разобран Jackson, повторная проверка в TaskParams не нужна
+        TaskParams taskParams = TaskParams.fromStored(json, maxAttempts,
+                item.path("exponentialBackoff").asBoolean(false),
+                item.path("backoffBase").asDouble(0),
+                item.path("maxBackoffMs").asLong(0));
+        return new TaskManagerImpl.BatchEntry(clazz, taskParams, time);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<Task> resolveTaskClass(String name) {
+        Class<Task> cached = taskClasses.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        Class<?> clazz;
+        try {
+            // Без инициализации: статические блоки произвольного класса из запроса не выполняются
+            clazz = Class.forName(name, false, IngestionServer.class.getClassLoader());
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalArgumentException("Unknown task class: " + name);
+        }
+        if (!Task.class.isAssignableFrom(clazz)) {
+            throw new IllegalArgumentException("Class " + name + " does not implement Task");
+        }
+        try {
+            clazz = Class.forName(name, true, clazz.getClassLoader());
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalArgumentException("Unknown task class: " + name);
+        }
+        taskClasses.put(name, (Class<Task>) clazz);
+        return (Class<Task>) clazz;
+    }
+
+    /**
+     * Поток записи: ждёт первую задачу, забирает всё, что накопилось за время предыдущей
+     * транзакции, и пишет по одному INSERT на категорию. Чем выше нагрузка, тем крупнее
+     * пачки, а при единичных запросах задержка не добавляется.
+     */
+    private void flushLoop() {
+        List<Submission> drained = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Submission first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                drained.add(first);
+                queue.drainTo(drained, maxBatch - 1);
+                queueSlots.release(drained.size());
+
+                Map<String, List<Submission>> byCategory = new LinkedHashMap<>();
+                for (Submission submission : drained) {
+                    byCategory.computeIfAbsent(submission.category, c -> new ArrayList<>()).add(submission);
+                }
+                for (Map.Entry<String, List<Submission>> group : byCategory.entrySet()) {
+                    flush(group.getKey(), group.getValue());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                drained.clear();
+            }
+        }
+    }
+
+    private void flush(String category, List<Submission> submissions) {
+        List<TaskManagerImpl.BatchEntry> entries = new ArrayList<>(submissions.size());
+        for (Submission submission : submissions) {
+            entries.add(submission.entry);
+        }
+        try {
+            long[] ids = taskManager.scheduleBatch(category, entries);
+            for (int i = 0; i < ids.length; i++) {
+                submissions.get(i).result.complete(ids[i]);
+            }
+            ingestedTasks.labels(category).inc(ids.length);
+            batchSize.observe(ids.length);
+        } catch (RuntimeException ex) {
+            Map<Object, List<Submission>> byRequest = new LinkedHashMap<>();
+            for (Submission submission : submissions) {
+                byRequest.computeIfAbsent(submission.request, r -> new ArrayList<>()).add(submission);
+            }
+            if (byRequest.size() > 1) {
+                // Строка одного запроса не должна ронять чужие: каждый запрос пишется своим INSERT
+                logger.warn("Batch of {} tasks of category {} failed, writing {} requests separately",
+                        submissions.size(), category, byRequest.size(), ex);
+                for (List<Submission> own : byRequest.values()) {
+                    flush(category, own);
+                }
+                return;
+            }
+            for (Submission submission : submissions) {
+                submission.result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private static String error(String message) {
+        try {
+            return objectMapper.writeValueAsString(Map.of("error", String.valueOf(message)));
+        } catch (JsonProcessingException e) {
+            return "{\"error\":\"\"}";
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Останавливает приём запросов и дописывает уже поставленные в очередь задачи
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        running = false;
+        flushers.shutdown();
+        try {
+            if (!flushers.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Ingestion flushers did not finish, {} tasks left unwritten", queue.size());
+                flushers.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            flushers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        handlers.shutdown();
+    }
+
+    private static class Submission {
+        final String category;
+        final TaskManagerImpl.BatchEntry entry;
+        /** Общий для задач одного HTTP-запроса */
+        final Object request;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        Submission(String category, TaskManagerImpl.BatchEntry entry, Object request) {
+            this.category = category;
+            this.entry = entry;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package org.example;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Хранилище задач в таблицах deferred_&lt;category&gt;. Захват и опрос идут через пул
+ * claim, запись исходов - через пул outcome, чтобы медленные исходы не задерживали захват.
+ */
+public class JdbcTaskStore implements TaskStore {
+    private static final Logger logger = LoggerFactory.getLogger(JdbcTaskStore.class);
+    private static final int RETURN_CHUNK_SIZE = 1000;
+    private static final int TRANSIENT_LOCK_ATTEMPTS = 3;
+    private static final String[] REQUIRED_COLUMNS = {"id", "category", "task_class", "params", "scheduled_time",
+            "max_attempts", "attempt_count", "status"};
+
+    private final DataSource claimDataSource;
+    private final DataSource outcomeDataSource;
+    private final ConcurrentMap<String, CategorySql> categorySql = new ConcurrentHashMap<>();
+
+    /**
+     * @param claimDataSource   пул для опроса и захвата задач
+     * @param outcomeDataSource пул для записи результатов выполнения
+     */
+    public JdbcTaskStore(DataSource claimDataSource, DataSource outcomeDataSource) {
+        this.claimDataSource = claimDataSource;
+        this.outcomeDataSource = outcomeDataSource;
+    }
+
+    /**
+     * Структура всех таблиц проверяется одним запросом к information_schema
+     */
+    @Override
+    public Map<String, String> validate(List<String> categories) throws SQLException {
+        try (Connection conn = claimDataSource.getConnection()) {
+            Map<String, Set<String>> columns = DatabaseConnection.loadTableColumns(conn);
+            Map<String, String> errors = new HashMap<>();
+            for (String category : categories) {
+                String tableName = "deferred_" + category;
+                Set<String> tableColumns = columns.getOrDefault(tableName, Set.of());
+                for (String column : REQUIRED_COLUMNS) {
+                    if (!tableColumns.contains(column)) {
+                        errors.put(category, "Table " + tableName + " is missing required column: " + column);
+                        break;
+                    }
+                }
+            }
+            return errors;
+        }
+    }
+
+    /**
+     * Выборка с блокировкой строк и один UPDATE по списку id вместо обновления
+     * каждой строки через курсор
+     */
+    @Override
+    public List<TaskData> claim(String category, int limit, long nowMillis,
+                                List<String> excludedClasses, String onlyClass) throws SQLException {
+        CategorySql sql = sqlFor(category);
+
+        // Список исключений дополняется повтором последнего класса до степени двойки:
+        // число разных текстов запроса остаётся логарифмическим, и подготовленные
+        // выражения переиспользуются при любом числе разомкнутых выключателей
+        int excludedSlots = excludedClasses.isEmpty() ? 0 : Integer.highestOneBit(excludedClasses.size() * 2 - 1);
+        String select = sql.claimSelect;
+        if (excludedSlots > 0 || onlyClass != null) {
+            StringBuilder filtered = new StringBuilder(sql.claimSelectHead);
+            if (onlyClass != null) {
+                filtered.append(" AND task_class = ?");
+            }
+            for (int i = 0; i < excludedSlots; i++) {
+                filtered.append(i == 0 ? " AND task_class NOT IN (?" : ",?");
+            }
+            if (excludedSlots > 0) {
+                filtered.append(')');
+            }
+            select = filtered.append(sql.claimSelectTail).toString();
+        }
+
+        String claimSelect = select;
+        return inTransaction(claimDataSource, conn -> {
+            List<TaskData> tasks = new ArrayList<>(limit);
+            try (PreparedStatement stmt = conn.prepareStatement(claimSelect)) {
+                int index = 1;
+                stmt.setTimestamp(index++, new Timestamp(nowMillis));
+                if (onlyClass != null) {
+                    stmt.setString(index++, onlyClass);
+                }
+                for (int i = 0; i < excludedSlots; i++) {
+                    stmt.setString(index++, excludedClasses.get(Math.min(i, excludedClasses.size() - 1)));
+                }
+                stmt.setInt(index, limit);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        tasks.add(new TaskData(
+                                rs.getLong(1),
+                                category,
+                                rs.getString(2),
+                                rs.getString(3),
+                                rs.getTimestamp(4).getTime(),
+                                rs.getInt(5),
+                                rs.getBoolean(6),
+                                rs.getDouble(7),
+                                rs.getLong(8),
+                                rs.getInt(9)
+                        ));
+                    }
+                }
+            }
+            if (!tasks.isEmpty()) {
+                markTasksProcessing(conn, sql, tasks);
+                StatusCounters.transition(conn, category, "PENDING", "PROCESSING", tasks.size());
+            }
+            return tasks;
+        });
+    }
+
+    private void markTasksProcessing(Connection conn, CategorySql sql, List<TaskData> tasks) throws SQLException {
+        StringBuilder update = new StringBuilder(sql.claimUpdatePrefix.length() + tasks.size() * 3);
+        update.append(sql.claimUpdatePrefix);
+        for (int i = 0; i < tasks.size(); i++) {
+            update.append(i == 0 ? "?" : ",?");
+        }
+        update.append(')');
+
+        try (PreparedStatement stmt = conn.prepareStatement(update.toString())) {
+            for (int i = 0; i < tasks.size(); i++) {
+                stmt.setLong(i + 1, tasks.get(i).getId());
+            }
+            stmt.executeUpdate();
+        }
+    }
+
+    @Override
+    public long nextDueMillis(String category) throws SQLException {
+        try (Connection conn = claimDataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sqlFor(category).nextDue);
+             ResultSet rs = stmt.executeQuery()) {
+            if (rs.next()) {
+                Timestamp nextDue = rs.getTimestamp(1);
+                return nextDue != null ? nextDue.getTime() : 0;
+            }
+            return 0;
+        }
+    }
+
+    @Override
+    public String loadOffloadedParams(TaskData task) throws SQLException {
+        try (Connection conn = outcomeDataSource.getConnection()) {
+            return TaskPayloads.load(conn, task.getCategory(), task.getParams());
+        }
+    }
+
+    @Override
+    public boolean complete(TaskData task) throws SQLException {
+        return inTransaction(outcomeDataSource, conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(sqlFor(task.getCategory()).complete)) {
+                stmt.setInt(1, task.getAttemptCount() + 1);
+                stmt.setLong(2, task.getId());
+                int updated = stmt.executeUpdate();
+                if (updated != 1) {
+                    logger.warn("Expected to update 1 row for task {}, but updated {}",
+                            task.getId(), updated);
+                }
+                StatusCounters.transition(conn, task.getCategory(), "PROCESSING", "COMPLETED", updated);
+                return updated == 1;
+            }
+        });
+    }
+
+    @Override
+    public boolean retry(TaskData task, int nextAttempt, long nextAttemptMillis) throws SQLException {
+        Timestamp nextAttemptTime = new Timestamp(nextAttemptMillis);
+
+        return inTransaction(outcomeDataSource, conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(sqlFor(task.getCategory()).retry)) {
+                stmt.setInt(1, nextAttempt);
+                stmt.setTimestamp(2, nextAttemptTime);
+                stmt.setTimestamp(3, nextAttemptTime);
+                stmt.setLong(4, task.getId());
+                int updated = stmt.executeUpdate();
+                StatusCounters.transition(conn, task.getCategory(), "PROCESSING", "PENDING", updated);
+                return updated == 1;
+            }
+        });
+    }
+
+    @Override
+    public boolean deadLetter(TaskData task, Exception error) throws SQLException {
+        CategorySql sql = sqlFor(task.getCategory());
+        return inTransaction(outcomeDataSource, conn -> {
+            try (PreparedStatement insert = conn.prepareStatement(sql.deadLetter);
+                 PreparedStatement delete = conn.prepareStatement(sql.deleteProcessing)) {
+                insert.setInt(1, task.getAttemptCount() + 1);
+                insert.setString(2, DeadLetterQueue.errorMessage(error));
+                insert.setString(3, DeadLetterQueue.errorHash(error));
+                insert.setLong(4, task.getId());
+                insert.executeUpdate();
+
+                delete.setLong(1, task.getId());
+                int moved = delete.executeUpdate();
+                StatusCounters.transition(conn, task.getCategory(), "PROCESSING", "FAILED", moved);
+                return moved == 1;
+            }
+        });
+    }
+
+    /**
+     * Обновление идёт порциями, по одному UPDATE на порцию
+     */
+    @Override
+    public int returnUnstarted(String category, List<Long> taskIds) throws SQLException {
+        CategorySql sql = sqlFor(category);
+        int returned = 0;
+        for (int from = 0; from < taskIds.size(); from += RETURN_CHUNK_SIZE) {
+            List<Long> chunk = taskIds.subList(from, Math.min(from + RETURN_CHUNK_SIZE, taskIds.size()));
+            StringBuilder update = new StringBuilder(sql.returnUpdatePrefix);
+            for (int i = 0; i < chunk.size(); i++) {
+                update.append(i == 0 ? "?" : ",?");
+            }
+            update.append(')');
+
+            try {
+                returned += inTransaction(outcomeDataSource, conn -> {
+                    try (PreparedStatement stmt = conn.prepareStatement(update.toString())) {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            stmt.setLong(i + 1, chunk.get(i));
+                        }
+                        int updated = stmt.executeUpdate();
+                        StatusCounters.transition(conn, category, "PROCESSING", "PENDING", updated);
+                        return updated;
+                    }
+                });
+            } catch (SQLException ex) {
+                throw new SQLException("Failed to return unstarted tasks of category " + category +
+                        " to PENDING after " + returned + " rows", ex);
+            }
+        }
+        return returned;
+    }
+
+    @Override
+    public Map<String, Long> reconcileCounters(String category) throws SQLException {
+        try (Connection conn = outcomeDataSource.getConnection()) {
+            return StatusCounters.reconcile(conn, category);
+        }
+    }
+
+    /**
+     * Размер пула outcome: каждый поток воркера держит из него соединение на время записи исхода
+     */
+    @Override
+    public int connectionLimit() {
+        return outcomeDataSource instanceof HikariDataSource hikari
+                ? hikari.getMaximumPoolSize()
+                : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Выполняет work в транзакции на соединении из dataSource. Транзакцию, откаченную
+     * из-за взаимной блокировки или таймаута блокировки, повторяет целиком на новом соединении,
+     * чтобы исход задачи не терялся и она не оставалась в PROCESSING.
+     */
+    private <T> T inTransaction(DataSource dataSource, Transaction<T> work) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    T result = work.run(conn);
+                    StatusCounters.commit(conn);
+                    return result;
+                } catch (SQLException ex) {
+                    StatusCounters.rollback(conn);
+                    if (!StatusCounters.isTransientLockFailure(ex) || attempt >= TRANSIENT_LOCK_ATTEMPTS) {
+                        throw ex;
+                    }
+                    logger.warn("Transaction failed with MySQL error {} (attempt {} of {}), retrying",
+                            ex.getErrorCode(), attempt, TRANSIENT_LOCK_ATTEMPTS);
+                }
+            }
+        }
+    }
+
+    private CategorySql sqlFor(String category) {
+        return categorySql.computeIfAbsent(category, CategorySql::new);
+    }
+
+    @Override
+    public String toString() {
+        return "JdbcTaskStore[claim=" + claimDataSource + ", outcome=" + outcomeDataSource + "]";
+    }
+
+    @FunctionalInterface
+    private interface Transaction<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * Тексты SQL пути захвата и выполнения, собранные один раз на категорию
+     */
+    private static class CategorySql {
+        final String claimSelect;
+        final String claimSelectHead;
+        final String claimSelectTail;
+        final String claimUpdatePrefix;
+        final String returnUpdatePrefix;
+        final String nextDue;
+        final String complete;
+        final String deadLetter;
+        final String deleteProcessing;
+        final String retry;
+
+        CategorySql(String category) {
+            String tableName = "deferred_" + category;
+            this.claimSelectHead = String.format("""
+                SELECT id, task_class, params, scheduled_time,
+                       max_attempts, exponential_backoff, backoff_base, max_backoff_ms, attempt_count
+                FROM %s
+                WHERE status = 'PENDING' AND scheduled_time <= ?""", tableName);
+            this.claimSelectTail = " ORDER BY scheduled_time LIMIT ? FOR UPDATE SKIP LOCKED";
+            this.claimSelect = claimSelectHead + claimSelectTail;
+            this.claimUpdatePrefix = "UPDATE " + tableName + " SET status = 'PROCESSING' WHERE id IN (";
+            this.nextDue = "SELECT MIN(scheduled_time) FROM " + tableName + " WHERE status = 'PENDING'";
+            this.returnUpdatePrefix = "UPDATE " + tableName +
+                    " SET status = 'PENDING' WHERE status = 'PROCESSING' AND id IN (";
+            this.complete = "UPDATE " + tableName +
+                    " SET status = 'COMPLETED', attempt_count = ?, " +
+                    "completed_at = CURRENT_TIMESTAMP " +
+                    "WHERE id = ? AND status = 'PROCESSING'";
+            this.deadLetter = "INSERT INTO " + DeadLetterQueue.tableName(category) +
+                    " (id, category, task_class, params, param_keys, scheduled_time, max_attempts, exponential_backoff," +
+                    " backoff_base, max_backoff_ms, attempt_count, created_at, idempotency_key, coalesce_key," +
+                    " last_error, error_hash)" +
+                    " SELECT id, category, task_class, params, param_keys, scheduled_time, max_attempts, exponential_backoff," +
+                    " backoff_base, max_backoff_ms, ?, created_at, idempotency_key, coalesce_key, ?, ?" +
+                    " FROM " + tableName + " WHERE id = ? AND status = 'PROCESSING'";
+            this.deleteProcessing = "DELETE FROM " + tableName + " WHERE id = ? AND status = 'PROCESSING'";
+            this.retry = "UPDATE " + tableName +
+                    " SET status = 'PENDING', attempt_count = ?, " +
+                    "next_attempt_time = ?, scheduled_time = ? WHERE id = ? AND status = 'PROCESSING'";
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Сводка по записи JFR: задержки фаз отложенных задач (постановка, захват,
+ * выполнение, запись исхода) по событиям из {@link TaskEvents}.
+ *
+ * <pre>java -cp target/classes org.example.JfrSummary recording.jfr</pre>
+ */
+public class JfrSummary {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: JfrSummary <recording.jfr>");
+            System.exit(1);
+        }
+
+        Map<String, PhaseStats> phases = new TreeMap<>();
+        try (RecordingFile recording = new RecordingFile(Path.of(args[0]))) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                String name = event.getEventType().getName();
+                if (!name.startsWith(TaskEvents.PREFIX)) {
+                    continue;
+                }
+                String phase = name.substring(TaskEvents.PREFIX.length());
+                phases.computeIfAbsent(phase, p -> new PhaseStats()).add(event.getDuration().toNanos());
+            }
+        }
+
+        if (phases.isEmpty()) {
+            System.out.println("No deferred task events found. Was the recording started with deferred-tasks.jfc?");
+            return;
+        }
+
+        System.out.printf("%-10s %10s %10s %10s %10s %10s%n", "phase", "count", "avg ms", "p50 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            PhaseStats stats = entry.getValue();
+            System.out.printf("%-10s %10d %10.2f %10.2f %10.2f %10.2f%n",
+                    entry.getKey(), stats.count, stats.averageMs(),
+                    stats.percentileMs(0.50), stats.percentileMs(0.99), stats.percentileMs(1.0));
+        }
+    }
+
+    private static class PhaseStats {
+        private long[] durations = new long[1024];
+        private int count;
+        private long totalNanos;
+        private boolean sorted;
+
+        void add(long nanos) {
+            if (count == durations.length) {
+                durations = Arrays.copyOf(durations, count * 2);
+            }
+            durations[count++] = nanos;
+            totalNanos += nanos;
+            sorted = false;
+        }
+
+        double averageMs() {
+            return count == 0 ? 0 : totalNanos / (double) count / 1_000_000;
+        }
+
+        double percentileMs(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!sorted) {
+                Arrays.sort(durations, 0, count);
+                sorted = true;
+            }
+            int index = (int) Math.ceil(percentile * count) - 1;
+            return durations[Math.max(0, Math.min(count - 1, index))] / 1_000_000.0;
+        }
+    }
+}
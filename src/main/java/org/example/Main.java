@@ -7,6 +7,7 @@ import io.prometheus.client.hotspot.DefaultExports;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.*;
@@ -16,6 +17,7 @@ public class Main {
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
     private static TaskManager taskManager;
     private static WorkerManager workerManager;
+    private static IngestionServer ingestionServer;
     private static Scanner scanner = new Scanner(System.in);
 
     static {
@@ -38,6 +40,7 @@ public class Main {
         } catch (Exception e) {
             System.out.println("⚠️ Критическая ошибка: " + e.getMessage());
         } finally {
+            stopIngestion();
             scanner.close();
         }
     }
@@ -47,11 +50,26 @@ public class Main {
 
         createWorkersTableIfNotExists();
 
-        taskManager = new TaskManagerImpl(DatabaseConnection.getDataSource());
-        workerManager = new WorkerManagerImpl(taskManager, DatabaseConnection.getDataSource());
+        TaskManagerImpl taskManagerImpl =
+                new TaskManagerImpl(DatabaseConnection.getDataSource(DatabaseConnection.PoolRole.INGESTION));
+        taskManager = taskManagerImpl;
+        workerManager = new WorkerManagerImpl(taskManager,
+                DatabaseConnection.getDataSource(DatabaseConnection.PoolRole.CLAIM),
+                DatabaseConnection.getDataSource(DatabaseConnection.PoolRole.OUTCOME),
+                Integer.getInteger("worker.pollers", 0));
 
         startAllWorkersFromDatabase();
 
+        int ingestPort = Integer.getInteger(IngestionServer.PORT_PROPERTY, 0);
+        if (ingestPort > 0) {
+            try {
+                ingestionServer = new IngestionServer(taskManagerImpl, ingestPort);
+                System.out.println("🌐 Приём задач по HTTP на порту " + ingestPort);
+            } catch (IOException e) {
+                System.out.println("⚠️ Не удалось запустить HTTP-приём задач: " + e.getMessage());
+            }
+        }
+
         System.out.println("✅ Система готова к работе\n");
     }
 
@@ -75,37 +93,54 @@ public class Main {
 
     private static void startAllWorkersFromDatabase() {
         String sql = "SELECT * FROM workers_config";
+        long startedAt = System.nanoTime();
 
+        Map<WorkerParams, RetryPolicyParam> workers = new LinkedHashMap<>();
         try (Connection conn = DatabaseConnection.getConnection();
              Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
 
-            int started = 0;
             while (rs.next()) {
-                String category = rs.getString("category");
-                try {
-                    workerManager.init(
-                            new WorkerParams(
-                                    category,
-                                    rs.getInt("thread_count")
-                            ),
-                            new RetryPolicyParam(
-                                    rs.getBoolean("exponential_backoff"),
-                                    rs.getInt("max_attempts"),
-                                    rs.getDouble("backoff_base"),
-                                    rs.getLong("max_backoff_ms")
-                            )
-                    );
-                    started++;
-                    System.out.println("🔄 Воркер для категории '" + category + "' запущен");
-                } catch (Exception e) {
-                    System.out.println("⚠️ Не удалось запустить воркер для категории '" + category + "': " + e.getMessage());
-                }
+                workers.put(
+                        new WorkerParams(
+                                rs.getString("category"),
+                                rs.getInt("thread_count")
+                        ),
+                        new RetryPolicyParam(
+                                rs.getBoolean("exponential_backoff"),
+                                rs.getInt("max_attempts"),
+                                rs.getDouble("backoff_base"),
+                                rs.getLong("max_backoff_ms")
+                        )
+                );
             }
-            System.out.println("✅ Запущено воркеров: " + started);
         } catch (SQLException e) {
             System.out.println("❌ Ошибка при запуске воркеров из БД: " + e.getMessage());
+            return;
         }
+
+        List<String> categories = new ArrayList<>();
+        for (WorkerParams workerParams : workers.keySet()) {
+            categories.add(workerParams.getCategory());
+        }
+        try {
+            DatabaseConnection.upgradeTables(categories);
+        } catch (SQLException e) {
+            System.out.println("⚠️ Не удалось обновить схему таблиц категорий: " + e.getMessage());
+        }
+
+        Map<String, Exception> failures = workerManager.initAll(workers);
+        for (String category : categories) {
+            Exception failure = failures.get(category);
+            if (failure == null) {
+                System.out.println("🔄 Воркер для категории '" + category + "' запущен");
+            } else {
+                System.out.println("⚠️ Не удалось запустить воркер для категории '" + category + "': " + failure.getMessage());
+            }
+        }
+
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        System.out.println("✅ Запущено воркеров: " + (categories.size() - failures.size()) + " за " + elapsedMs + " мс");
     }
 
     private static void showMainMenu() {
@@ -149,14 +184,18 @@ public class Main {
             System.out.println("1. Создать задачу");
             System.out.println("2. Создать несколько задач");
             System.out.println("3. Отменить задачу");
+            System.out.println("4. Отменить все задачи типа");
+            System.out.println("5. Повторить упавшие задачи (DLQ)");
             System.out.println("0. Назад");
             System.out.print("Выберите пункт: ");
 
-            int choice = readIntInput(0, 3);
+            int choice = readIntInput(0, 5);
             switch (choice) {
                 case 1 -> createSingleTaskInteractive(categories);
                 case 2 -> createMultipleTasksInteractive(categories);
                 case 3 -> cancelTaskInteractive(categories);
+                case 4 -> cancelTasksByTypeInteractive(categories);
+                case 5 -> replayDeadLettersInteractive(categories);
                 case 0 -> { return; }
             }
         }
@@ -259,20 +298,73 @@ public class Main {
         }
     }
 
+    private static void replayDeadLettersInteractive(List<String> categories) {
+        System.out.println("\n=== ПОВТОР УПАВШИХ ЗАДАЧ ===");
+
+        String category = selectCategoryFromList(categories);
+        if (category == null) return;
+
+        DeadLetterQueue deadLetters = new DeadLetterQueue(DatabaseConnection.getDataSource());
+        try {
+            long failed = deadLetters.count(category);
+            System.out.println("Задач в DLQ: " + failed);
+            if (failed == 0) return;
+
+            System.out.print("Хеш ошибки (пусто - любые ошибки): ");
+            String errorHash = scanner.nextLine().trim();
+
+            System.out.print("Скорость, задач в секунду (1-100000): ");
+            int rate = readIntInput(1, 100000);
+
+            System.out.print("Вернуть задачи в очередь? (y/n): ");
+            if (!readYesNoInput()) return;
+
+            long replayed = deadLetters.replay(category, TaskFilter.all(),
+                    errorHash.isEmpty() ? null : errorHash, Math.min(1000, rate), rate);
+            System.out.println("✅ Возвращено в очередь задач: " + replayed);
+        } catch (Exception e) {
+            System.out.println("❌ Ошибка при повторе задач: " + e.getMessage());
+        }
+    }
+
+    private static void cancelTasksByTypeInteractive(List<String> categories) {
+        System.out.println("\n=== МАССОВАЯ ОТМЕНА ЗАДАЧ ===");
+
+        String category = selectCategoryFromList(categories);
+        if (category == null) return;
+
+        Class<? extends Task> taskClass = selectTaskType();
+        if (taskClass == null) return;
+
+        System.out.print("Отменить все ожидающие и захваченные задачи " + taskClass.getSimpleName() + "? (y/n): ");
+        if (!readYesNoInput()) return;
+
+        try {
+            int cancelled = taskManager.cancel(category, TaskFilter.all().withTaskClass(taskClass));
+            System.out.println("✅ Отменено задач: " + cancelled);
+        } catch (Exception e) {
+            System.out.println("❌ Ошибка при отмене задач: " + e.getMessage());
+        }
+    }
+
     private static void manageWorkersMenu() {
         while (true) {
             System.out.println("\n=== УПРАВЛЕНИЕ ВОРКЕРАМИ ===");
             System.out.println("1. Добавить воркер");
             System.out.println("2. Остановить воркер");
             System.out.println("3. Список воркеров");
+            System.out.println("4. Изменить количество потоков");
+            System.out.println("5. Выключатели захвата");
             System.out.println("0. Назад");
             System.out.print("Выберите пункт: ");
 
-            int choice = readIntInput(0, 3);
+            int choice = readIntInput(0, 5);
             switch (choice) {
                 case 1 -> addWorkerInteractive();
                 case 2 -> stopWorkerInteractive();
                 case 3 -> listWorkersInteractive();
+                case 4 -> resizeWorkerInteractive();
+                case 5 -> manageCircuitsInteractive();
                 case 0 -> { return; }
             }
         }
@@ -364,6 +456,85 @@ public class Main {
         }
     }
 
+    private static void manageCircuitsInteractive() {
+        List<String> activeCategories = getActiveWorkerCategories();
+        if (activeCategories.isEmpty()) {
+            System.out.println("⚠️ Нет активных воркеров");
+            return;
+        }
+
+        System.out.println("\n=== ВЫКЛЮЧАТЕЛИ ЗАХВАТА ===");
+        String category = selectCategoryFromList(activeCategories);
+        if (category == null) return;
+
+        try {
+            for (Map.Entry<String, CircuitBreaker.State> circuit : workerManager.getCircuitStates(category).entrySet()) {
+                String scope = CircuitBreaker.CATEGORY_SCOPE.equals(circuit.getKey())
+                        ? "(вся категория)" : circuit.getKey();
+                System.out.printf("%-40s %s%n", scope, circuit.getValue());
+            }
+
+            System.out.println("\n1. Разомкнуть (остановить захват)");
+            System.out.println("2. Пробный запуск");
+            System.out.println("3. Замкнуть (возобновить захват)");
+            System.out.println("4. Включить автоматическое срабатывание");
+            System.out.println("0. Назад");
+            System.out.print("Выберите пункт: ");
+
+            int choice = readIntInput(0, 4);
+            if (choice == 0) return;
+            if (choice == 4) {
+                workerManager.enableCircuitBreaker(category, new CircuitBreakerParams());
+                System.out.println("✅ Автоматическое срабатывание включено для категории '" + category + "'");
+                return;
+            }
+
+            System.out.print("Класс задачи (пусто - вся категория): ");
+            String taskClass = scanner.nextLine().trim();
+            CircuitBreaker.State state = switch (choice) {
+                case 1 -> CircuitBreaker.State.OPEN;
+                case 2 -> CircuitBreaker.State.HALF_OPEN;
+                default -> CircuitBreaker.State.CLOSED;
+            };
+            workerManager.setCircuitState(category, taskClass.isEmpty() ? null : taskClass, state);
+            System.out.println("✅ Выключатель переведён в состояние " + state);
+        } catch (Exception e) {
+            System.out.println("❌ Ошибка при управлении выключателем: " + e.getMessage());
+        }
+    }
+
+    private static void resizeWorkerInteractive() {
+        List<String> activeCategories = getActiveWorkerCategories();
+        if (activeCategories.isEmpty()) {
+            System.out.println("⚠️ Нет активных воркеров");
+            return;
+        }
+
+        System.out.println("\n=== ИЗМЕНЕНИЕ КОЛИЧЕСТВА ПОТОКОВ ===");
+        String category = selectCategoryFromList(activeCategories);
+        if (category == null) return;
+
+        System.out.print("Количество потоков (1-10): ");
+        int threads = readIntInput(1, 10);
+
+        System.out.print("Размер захвата задач за опрос (1-1000): ");
+        int claimSize = readIntInput(1, 1000);
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            String sql = "UPDATE workers_config SET thread_count = ? WHERE category = ?";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, threads);
+                stmt.setString(2, category);
+                stmt.executeUpdate();
+            }
+
+            workerManager.resize(category, threads, claimSize);
+            System.out.println("✅ Воркер для категории '" + category + "' теперь использует " + threads + " потоков");
+        } catch (Exception e) {
+            System.out.println("❌ Ошибка при изменении воркера: " + e.getMessage());
+        }
+    }
+
     private static void listWorkersInteractive() {
         System.out.println("\n=== СПИСОК ВОРКЕРОВ ===");
 
@@ -420,14 +591,16 @@ public class Main {
             System.out.println("1. Список всех задач");
             System.out.println("2. Статус конкретной задачи");
             System.out.println("3. Статистика по категории");
+            System.out.println("4. Самые затратные типы задач");
             System.out.println("0. Назад");
             System.out.print("Выберите пункт: ");
 
-            int choice = readIntInput(0, 3);
+            int choice = readIntInput(0, 4);
             switch (choice) {
                 case 1 -> listAllTasksInteractive(categories);
                 case 2 -> showTaskStatusInteractive(categories);
                 case 3 -> showCategoryStatsInteractive(categories);
+                case 4 -> showTaskCostReport();
                 case 0 -> { return; }
             }
         }
@@ -437,30 +610,33 @@ public class Main {
         String category = selectCategoryFromList(categories);
         if (category == null) return;
 
-        try (Connection conn = DatabaseConnection.getConnection()) {
-            String sql = "SELECT id, task_class, status, scheduled_time, attempt_count, max_attempts " +
-                    "FROM deferred_" + category + " ORDER BY scheduled_time DESC LIMIT 50";
-
-            try (Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery(sql)) {
+        TaskQuery query = TaskQuery.of(category).descending().withPageSize(50);
+        try {
+            while (true) {
+                TaskQuery.Page page = query.fetchPage(DatabaseConnection.getDataSource());
 
-                System.out.printf("\nПоследние 50 задач (%s):%n", category);
+                System.out.printf("\nПоследние задачи (%s):%n", category);
                 System.out.println("┌───────┬──────────────────────────────┬────────────┬─────────────────────┬──────────┐");
                 System.out.println("│ ID    │ Тип                          │ Статус     │ Время выполнения    │ Попытки  │");
                 System.out.println("├───────┼──────────────────────────────┼────────────┼─────────────────────┼──────────┤");
 
-                while (rs.next()) {
+                for (TaskRecord task : page.getTasks()) {
                     System.out.printf("│ %-5d │ %-28s │ %-10s │ %-19s │ %2d/%-5d │%n",
-                            rs.getLong("id"),
-                            shortenClassName(rs.getString("task_class")),
-                            rs.getString("status"),
-                            rs.getTimestamp("scheduled_time").toLocalDateTime().toLocalTime(),
-                            rs.getInt("attempt_count"),
-                            rs.getInt("max_attempts"));
+                            task.getId(),
+                            shortenClassName(task.getTaskClass()),
+                            task.getStatus(),
+                            new Timestamp(task.getScheduledTimeMillis()).toLocalDateTime().toLocalTime(),
+                            task.getAttemptCount(),
+                            task.getMaxAttempts());
                 }
                 System.out.println("└───────┴──────────────────────────────┴────────────┴─────────────────────┴──────────┘");
+
+                if (page.getNextPage() == null) return;
+                System.out.print("Показать следующие 50? (y/n): ");
+                if (!readYesNoInput()) return;
+                query = query.after(page.getNextPage());
             }
-        } catch (SQLException e) {
+        } catch (RuntimeException e) {
             System.out.println("❌ Ошибка при получении списка задач: " + e.getMessage());
         }
     }
@@ -487,9 +663,9 @@ public class Main {
                     System.out.printf("Создана:      %s%n", rs.getTimestamp("created_at"));
                     System.out.printf("Запланировано: %s%n", rs.getTimestamp("scheduled_time"));
                     System.out.printf("Следующая попытка: %s%n", rs.getTimestamp("next_attempt_time"));
-                    System.out.printf("Параметры:    %s%n", rs.getString("params"));
+                    System.out.printf("Параметры:    %s%n", displayParams(category, rs.getString("params")));
                 } else {
-                    System.out.println("⚠️ Задача не найдена");
+                    showDeadLetter(conn, category, taskId);
                 }
             }
         } catch (SQLException e) {
@@ -497,31 +673,73 @@ public class Main {
         }
     }
 
+    private static void showDeadLetter(Connection conn, String category, long taskId) throws SQLException {
+        String sql = "SELECT * FROM " + DeadLetterQueue.tableName(category) + " WHERE id = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, taskId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    System.out.println("⚠️ Задача не найдена");
+                    return;
+                }
+                System.out.println("\n=== ДЕТАЛИ ЗАДАЧИ (DLQ) ===");
+                System.out.printf("ID:           %d%n", rs.getLong("id"));
+                System.out.printf("Тип:          %s%n", rs.getString("task_class"));
+                System.out.printf("Статус:       FAILED%n");
+                System.out.printf("Попытки:      %d/%d%n", rs.getInt("attempt_count"), rs.getInt("max_attempts"));
+                System.out.printf("Создана:      %s%n", rs.getTimestamp("created_at"));
+                System.out.printf("Упала:        %s%n", rs.getTimestamp("failed_at"));
+                System.out.printf("Ошибка:       %s%n", rs.getString("last_error"));
+                System.out.printf("Хеш ошибки:   %s%n", rs.getString("error_hash"));
+                System.out.printf("Параметры:    %s%n", displayParams(category, rs.getString("params")));
+            }
+        }
+    }
+
+    private static String displayParams(String category, String storedParams) {
+        if (TaskPayloads.isOffloaded(storedParams)) {
+            return "(вынесены в " + TaskPayloads.tableName(category) + ", id " + storedParams.substring(1) + ")";
+        }
+        return TaskPayloads.decode(storedParams);
+    }
+
+    private static void showTaskCostReport() {
+        List<TaskCostTracker.ClassCost> top = TaskCostTracker.top(10);
+        if (top.isEmpty()) {
+            System.out.println("\nℹ️ Задачи ещё не выполнялись");
+            return;
+        }
+
+        System.out.println("\n=== САМЫЕ ЗАТРАТНЫЕ ТИПЫ ЗАДАЧ ===");
+        System.out.printf("%-30s %8s %12s %12s %12s%n", "Тип", "Запусков", "CPU, мс", "Время, мс", "Память, КБ");
+        for (TaskCostTracker.ClassCost cost : top) {
+            String taskClass = cost.getTaskClass();
+            System.out.printf("%-30s %8d %12d %12d %12d%n",
+                    taskClass.substring(taskClass.lastIndexOf('.') + 1),
+                    cost.getExecutions(),
+                    TimeUnit.NANOSECONDS.toMillis(cost.getCpuNanos()),
+                    TimeUnit.NANOSECONDS.toMillis(cost.getWallNanos()),
+                    cost.getAllocatedBytes() / 1024);
+        }
+    }
+
     private static void showCategoryStatsInteractive(List<String> categories) {
         String category = selectCategoryFromList(categories);
         if (category == null) return;
 
         try (Connection conn = DatabaseConnection.getConnection()) {
-            String sql = "SELECT " +
-                    "COUNT(*) as total, " +
-                    "SUM(CASE WHEN status = 'COMPLETED' THEN 1 ELSE 0 END) as completed, " +
-                    "SUM(CASE WHEN status = 'FAILED' THEN 1 ELSE 0 END) as failed, " +
-                    "SUM(CASE WHEN status = 'PENDING' THEN 1 ELSE 0 END) as pending, " +
-                    "SUM(CASE WHEN status = 'PROCESSING' THEN 1 ELSE 0 END) as processing " +
-                    "FROM deferred_" + category;
-
-            try (Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery(sql)) {
-
-                if (rs.next()) {
-                    System.out.println("\n=== СТАТИСТИКА КАТЕГОРИИ " + category.toUpperCase() + " ===");
-                    System.out.printf("Всего задач:    %d%n", rs.getInt("total"));
-                    System.out.printf("Успешно:        %d%n", rs.getInt("completed"));
-                    System.out.printf("С ошибкой:      %d%n", rs.getInt("failed"));
-                    System.out.printf("Ожидают:        %d%n", rs.getInt("pending"));
-                    System.out.printf("В процессе:     %d%n", rs.getInt("processing"));
-                }
+            Map<String, Long> counts = StatusCounters.read(conn, category);
+            long total = 0;
+            for (long count : counts.values()) {
+                total += count;
             }
+
+            System.out.println("\n=== СТАТИСТИКА КАТЕГОРИИ " + category.toUpperCase() + " ===");
+            System.out.printf("Всего задач:    %d%n", total);
+            System.out.printf("Успешно:        %d%n", counts.get("COMPLETED"));
+            System.out.printf("С ошибкой:      %d%n", counts.get("FAILED"));
+            System.out.printf("Ожидают:        %d%n", counts.get("PENDING"));
+            System.out.printf("В процессе:     %d%n", counts.get("PROCESSING"));
         } catch (SQLException e) {
             System.out.println("❌ Ошибка при получении статистики: " + e.getMessage());
         }
@@ -529,6 +747,8 @@ public class Main {
 
     private static void shutdownSystem() {
         System.out.println("\nЗавершение работы системы...");
+        // Сначала HTTP-приём: он дописывает принятые задачи, пока менеджер задач ещё доступен
+        stopIngestion();
         try {
             List<String> categories = getActiveWorkerCategories();
             for (String category : categories) {
@@ -541,6 +761,14 @@ public class Main {
         System.out.println("✅ Система успешно остановлена");
     }
 
+    private static void stopIngestion() {
+        if (ingestionServer != null) {
+            ingestionServer.close();
+            ingestionServer = null;
+            System.out.println("✅ HTTP-приём задач остановлен");
+        }
+    }
+
     private static String selectCategoryFromList(List<String> categories) {
         System.out.println("\nДоступные категории:");
         for (int i = 0; i < categories.size(); i++) {
@@ -0,0 +1,102 @@
+package org.example;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Политика задержек между повторами. Категория получает политику из
+ * {@link RetryPolicyParam}, класс задачи может переопределить её через
+ * {@link Task#getRetryPolicy()}.
+ */
+@FunctionalInterface
+public interface RetryPolicy {
+
+    /**
+     * @param attempt номер повтора, начиная с 1
+     * @return задержка перед повтором в миллисекундах
+     */
+    long delayMs(int attempt);
+
+    /**
+     * Разброс задержки, чтобы задачи, упавшие одновременно, не повторялись в один момент.
+     */
+    enum Jitter {
+        /** Без разброса */
+        NONE,
+        /** Случайная задержка от 0 до расчётной */
+        FULL,
+        /** Половина расчётной задержки плюс случайная добавка до второй половины */
+        EQUAL,
+        /** Случайная задержка между начальной и утроенной задержкой предыдущей попытки, не больше предельной */
+        DECORRELATED
+    }
+
+    static RetryPolicy backoff(boolean exponential, double base, long maxDelayMs, Jitter jitter) {
+        return new Backoff(exponential, base, maxDelayMs, jitter, null);
+    }
+
+    /**
+     * Политика с заданным источником случайности для разброса - для воспроизводимых прогонов
+     * {@link Simulation}. Источник не потокобезопасен, поэтому такая политика для одного потока.
+     */
+    static RetryPolicy backoff(boolean exponential, double base, long maxDelayMs, Jitter jitter,
+                               RandomGenerator random) {
+        return new Backoff(exponential, base, maxDelayMs, jitter, random);
+    }
+
+    /**
+     * Экспоненциальная (base^attempt секунд) или фиксированная (maxDelayMs) задержка
+     * с ограничением сверху и разбросом.
+     */
+    final class Backoff implements RetryPolicy {
+        private final boolean exponential;
+        private final double base;
+        private final long maxDelayMs;
+        private final Jitter jitter;
+        private final RandomGenerator random;
+
+        private Backoff(boolean exponential, double base, long maxDelayMs, Jitter jitter, RandomGenerator random) {
+            this.exponential = exponential;
+            this.base = base;
+            this.maxDelayMs = maxDelayMs;
+            this.jitter = jitter;
+            this.random = random;
+        }
+
+        @Override
+        public long delayMs(int attempt) {
+            long delay = rawDelayMs(attempt);
+            if (delay <= 0) {
+                return 0;
+            }
+
+            RandomGenerator random = this.random != null ? this.random : ThreadLocalRandom.current();
+            return switch (jitter) {
+                case NONE -> delay;
+                case FULL -> random.nextLong(delay + 1);
+                case EQUAL -> delay / 2 + random.nextLong(delay - delay / 2 + 1);
+                case DECORRELATED -> {
+                    // Предыдущая задержка не хранится, за неё берётся расчётная задержка прошлой попытки.
+                    // У фиксированной задержки нижняя граница - её треть, иначе после ограничения
+                    // сверху все выборки совпали бы с maxDelayMs.
+                    long initial = exponential ? rawDelayMs(1) : delay / 3;
+                    long previous = attempt > 1 && exponential ? rawDelayMs(attempt - 1) : initial;
+                    long upper = Math.min(Math.max(initial, previous), Long.MAX_VALUE / 4) * 3;
+                    // Ограничение сверху - уже после выборки, как в исходной схеме
+                    yield Math.min(maxDelayMs, initial + random.nextLong(upper - initial + 1));
+                }
+            };
+        }
+
+        private long rawDelayMs(int attempt) {
+            if (!exponential) {
+                return maxDelayMs;
+            }
+            if (attempt < 1) {
+                return 0;
+            }
+            double delay = Math.pow(base, attempt) * 1000;
+            return (long) Math.min(delay, maxDelayMs);
+        }
+    }
+}
@@ -5,22 +5,38 @@ public class RetryPolicyParam {
     private final int maxAttempts;
     private final double base;
     private final long maxDelayMs;
+    private final RetryPolicy.Jitter jitter;
+    private final RetryPolicy policy;
 
     public RetryPolicyParam(boolean isExponential,
                             int maxAttempts,
                             double base,
                             long maxDelayMs) {
+        this(isExponential, maxAttempts, base, maxDelayMs, RetryPolicy.Jitter.EQUAL);
+    }
+
+    public RetryPolicyParam(boolean isExponential,
+                            int maxAttempts,
+                            double base,
+                            long maxDelayMs,
+                            RetryPolicy.Jitter jitter) {
         this.isExponential = isExponential;
         this.maxAttempts = maxAttempts;
         this.base = base;
         this.maxDelayMs = maxDelayMs;
+        this.jitter = jitter;
+        this.policy = RetryPolicy.backoff(isExponential, base, maxDelayMs, jitter);
     }
 
     public long calculateDelay(int attemptNumber) {
+        return policy.delayMs(attemptNumber);
+    }
 
-        double delay = Math.pow(base, attemptNumber) * 1000;
-
-        return Math.min((long) delay, maxDelayMs);
+    /**
+     * Политика повторов категории по умолчанию
+     */
+    public RetryPolicy toRetryPolicy() {
+        return policy;
     }
 
     public boolean isExponential() {
@@ -39,4 +55,8 @@ public class RetryPolicyParam {
         return maxDelayMs;
     }
 
+    public RetryPolicy.Jitter getJitter() {
+        return jitter;
+    }
+
 }
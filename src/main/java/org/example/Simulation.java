@@ -0,0 +1,320 @@
+package org.example;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Воспроизводимая симуляция воркера одной категории в виртуальном времени: настоящий
+ * {@link WorkerManagerImpl} работает с {@link InMemoryTaskStore}, {@link VirtualClock}
+ * и потоками {@link VirtualScheduler}, поэтому опрос, очередь исполнителя с выполнением
+ * в вызывающем потоке, локальные и отложенные повторы - это код воркера, а не его модель.
+ * Задачи выполняет {@link SimulatedTask}: она ждёт время выполнения в виртуальном времени.
+ * Задержка базы моделируется только для захвата.
+ *
+ * <p>Время выполнения, падения и разброс задержек повторов выводятся из seed, номера
+ * задачи и попытки, а события отпускаются по одному: одинаковые параметры дают одинаковый отчёт.
+ *
+ * <pre>java -Dsim.tasks=100000 -Dsim.threads=20 -cp "target/classes:$(cat cp.txt)" org.example.Simulation</pre>
+ */
+public class Simulation {
+    static final String CATEGORY = "simulation";
+
+    private static volatile Simulation current;
+
+    private final long taskCount;
+    private final long spanMs;
+    private final long scheduleAheadMs;
+    private final int threads;
+    private final int claimSize;
+    private final boolean sharedPoller;
+    private final long claimLatencyMs;
+    private final double meanServiceMs;
+    private final double failureRate;
+    private final RetryPolicyParam retryParams;
+    private final long seed;
+
+    private final VirtualClock clock = new VirtualClock(0);
+    private final VirtualScheduler scheduler = new VirtualScheduler(clock);
+    private final InMemoryTaskStore store = new ClaimLatencyStore();
+    private final Random arrivalRandom;
+    private final long[] firstDue;
+    private final long[] retryDue;
+    private final int[] attempts;
+    private final ThreadLocal<Integer> failedTask = new ThreadLocal<>();
+    private WorkerManagerImpl workerManager;
+    private ScheduledExecutorService arrivals;
+    private int arrived;
+
+    private final LatencyStats startLag = new LatencyStats();
+    private final LatencyStats retryStartLag = new LatencyStats();
+    private final LatencyStats completionLatency = new LatencyStats();
+    private long failures;
+    private long callerRuns;
+    private long lastFinishMs;
+
+    /**
+     * @param taskCount       число задач
+     * @param spanMs          за какое время поступают задачи (поток Пуассона)
+     * @param scheduleAheadMs на сколько вперёд планируется каждая задача при поступлении
+     * @param threads         потоки воркера
+     * @param claimSize       задач за один захват
+     * @param sharedPoller    режим общего пула опроса вместо опроса раз в секунду
+     * @param claimLatencyMs  длительность запроса захвата
+     * @param meanServiceMs   среднее время выполнения задачи (экспоненциальное распределение)
+     * @param failureRate     вероятность падения одного выполнения
+     * @param retryParams     политика повторов категории
+     * @param seed            начальное значение генераторов случайных чисел
+     */
+    public Simulation(int taskCount, long spanMs, long scheduleAheadMs, int threads, int claimSize,
+                      boolean sharedPoller, long claimLatencyMs, double meanServiceMs, double failureRate,
+                      RetryPolicyParam retryParams, long seed) {
+        this.taskCount = taskCount;
+        this.spanMs = spanMs;
+        this.scheduleAheadMs = scheduleAheadMs;
+        this.threads = threads;
+        this.claimSize = claimSize;
+        this.sharedPoller = sharedPoller;
+        this.claimLatencyMs = claimLatencyMs;
+        this.meanServiceMs = meanServiceMs;
+        this.failureRate = failureRate;
+        this.retryParams = retryParams;
+        this.seed = seed;
+        this.arrivalRandom = new Random(seed);
+        this.firstDue = new long[taskCount + 1];
+        this.retryDue = new long[taskCount + 1];
+        this.attempts = new int[taskCount + 1];
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
+        loggerContext.getLogger("org.example").setLevel(Level.OFF);
+        loggerContext.getLogger(Logger.ROOT_LOGGER_NAME).setLevel(Level.OFF);
+
+        RetryPolicyParam retryParams = new RetryPolicyParam(
+                Boolean.parseBoolean(System.getProperty("sim.exponential", "true")),
+                Integer.getInteger("sim.max-attempts", 3),
+                Double.parseDouble(System.getProperty("sim.backoff-base", "2.0")),
+                Long.getLong("sim.max-backoff-ms", 60_000),
+                RetryPolicy.Jitter.valueOf(System.getProperty("sim.jitter", "EQUAL")));
+        Simulation simulation = new Simulation(
+                Integer.getInteger("sim.tasks", 100_000),
+                Long.getLong("sim.span-ms", 24 * 60 * 60 * 1000L),
+                Long.getLong("sim.schedule-ahead-ms", 0),
+                Integer.getInteger("sim.threads", 10),
+                Integer.getInteger("sim.claim-size", WorkerManagerImpl.DEFAULT_CLAIM_SIZE),
+                Boolean.getBoolean("sim.shared-poller"),
+                Long.getLong("sim.claim-ms", 5),
+                Double.parseDouble(System.getProperty("sim.service-ms", "50")),
+                Double.parseDouble(System.getProperty("sim.failure-rate", "0.05")),
+                retryParams,
+                Long.getLong("sim.seed", 42));
+
+        long startedAt = System.nanoTime();
+        simulation.run();
+        simulation.printReport((System.nanoTime() - startedAt) / 1_000_000);
+    }
+
+    /**
+     * Прогоняет симуляцию до окончательного исхода всех задач
+     */
+    public void run() throws InterruptedException {
+        current = this;
+        workerManager = new WorkerManagerImpl(null, store, sharedPoller ? 1 : 0, clock, scheduler);
+        try {
+            workerManager.init(new WorkerParams(CATEGORY, threads), retryParams);
+            workerManager.resize(CATEGORY, threads, claimSize);
+            arrivals = scheduler.newScheduler("arrivals", 1);
+            arrivals.schedule(this::arrive, nextArrivalDelay(), TimeUnit.MILLISECONDS);
+
+            while (store.getCompleted() + store.getDeadLettered() < taskCount) {
+                if (!scheduler.step()) {
+                    throw new IllegalStateException("Simulation stalled with unfinished tasks");
+                }
+            }
+            workerManager.destroy(CATEGORY);
+        } finally {
+            scheduler.close();
+            current = null;
+        }
+    }
+
+    /**
+     * Поступление задачи: запись в хранилище и, как у {@link TaskManagerImpl}, уведомление воркера
+     */
+    private void arrive() {
+        long due = clock.millis() + scheduleAheadMs;
+        int index = ++arrived;
+        firstDue[index] = due;
+        store.add(CATEGORY, SimulatedTask.class.getName(),
+                new TaskParams(Integer.toString(index), retryParams.getMaxAttempts(), retryParams.isExponential(),
+                        retryParams.getBase(), retryParams.getMaxDelayMs()), due);
+        workerManager.onTaskScheduled(CATEGORY, due);
+        if (arrived < taskCount) {
+            arrivals.schedule(this::arrive, nextArrivalDelay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private long nextArrivalDelay() {
+        double meanGap = (double) spanMs / taskCount;
+        return Math.round(-meanGap * Math.log(1 - arrivalRandom.nextDouble()));
+    }
+
+    /**
+     * Одно выполнение задачи: длительность и исход зависят только от seed, задачи и попытки
+     */
+    private void execute(int index) throws Exception {
+        int attempt;
+        synchronized (this) {
+            attempt = attempts[index];
+            long now = clock.millis();
+            if (attempt == 0) {
+                startLag.add(now - firstDue[index]);
+            } else {
+                retryStartLag.add(now - retryDue[index]);
+            }
+            if (!scheduler.isPoolThread()) {
+                callerRuns++;
+            }
+        }
+
+        SplittableRandom random = new SplittableRandom(mix(seed, index, attempt));
+        scheduler.sleep(Math.round(-meanServiceMs * Math.log(1 - random.nextDouble())), index);
+
+        boolean failed = random.nextDouble() < failureRate;
+        synchronized (this) {
+            lastFinishMs = Math.max(lastFinishMs, clock.millis());
+            if (failed) {
+                failures++;
+            } else {
+                completionLatency.add(clock.millis() - firstDue[index]);
+            }
+        }
+        if (failed) {
+            failedTask.set(index);
+            throw new IllegalStateException("Simulated failure of task " + index);
+        }
+    }
+
+    /**
+     * Задержка повтора задачи, только что упавшей в этом потоке. Воркер может спросить её
+     * дважды (локальный повтор, затем отложенный) - ответ одинаковый.
+     */
+    private long retryDelay(int attempt) {
+        int index = failedTask.get();
+        RetryPolicy policy = RetryPolicy.backoff(retryParams.isExponential(), retryParams.getBase(),
+                retryParams.getMaxDelayMs(), retryParams.getJitter(),
+                new SplittableRandom(mix(~seed, index, attempt)));
+        long delay = Math.max(0, policy.delayMs(attempt));
+        synchronized (this) {
+            attempts[index] = attempt;
+            retryDue[index] = clock.millis() + delay;
+        }
+        return delay;
+    }
+
+    private static long mix(long seed, long index, long attempt) {
+        return new SplittableRandom(seed ^ (index * 0x9E3779B97F4A7C15L) ^ (attempt << 48)).nextLong();
+    }
+
+    public void printReport(long wallMs) {
+        double simulatedSec = Math.max(1, lastFinishMs) / 1000.0;
+        long completed = store.getCompleted();
+        long deadLettered = store.getDeadLettered();
+        long storedRetries = store.getRetried();
+        System.out.printf("Simulated %,d tasks over %.1f h of virtual time in %,d ms (x%,.0f)%n",
+                taskCount, simulatedSec / 3600, wallMs, simulatedSec * 1000 / Math.max(1, wallMs));
+        System.out.printf("Mode: %s, threads %d, claim size %d, mean service %.1f ms, failure rate %.3f%n",
+                sharedPoller ? "shared poller" : "fixed 1s poll", threads, claimSize, meanServiceMs, failureRate);
+        System.out.printf("Completed %,d, dead-lettered %,d, local retries %,d, stored retries %,d%n",
+                completed, deadLettered, failures - deadLettered - storedRetries, storedRetries);
+        System.out.printf("Polls %,d (empty %,d), caller-runs dispatches %,d%n",
+                store.getClaims(), store.getEmptyClaims(), callerRuns);
+        System.out.printf("Throughput %,.1f tasks/s%n", completed / simulatedSec);
+        System.out.println();
+        System.out.printf("%-18s %10s %10s %10s %10s %10s%n", "latency", "count", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        startLag.print("start lag");
+        retryStartLag.print("retry start lag");
+        completionLatency.print("due to completion");
+    }
+
+    public long getCompleted() {
+        return store.getCompleted();
+    }
+
+    public long getDeadLettered() {
+        return store.getDeadLettered();
+    }
+
+    /**
+     * Задача симуляции; в параметрах - номер задачи в порядке поступления
+     */
+    public static class SimulatedTask implements Task {
+        @Override
+        public void execute(TaskParams params) throws Exception {
+            current.execute(Integer.parseInt(params.getJsonData()));
+        }
+
+        @Override
+        public RetryPolicy getRetryPolicy() {
+            return current::retryDelay;
+        }
+    }
+
+    /**
+     * Захват, который занимает поток опроса на sim.claim-ms виртуального времени
+     */
+    private class ClaimLatencyStore extends InMemoryTaskStore {
+        @Override
+        public List<TaskData> claim(String category, int limit, long nowMillis,
+                                    List<String> excludedClasses, String onlyClass) {
+            List<TaskData> tasks = super.claim(category, limit, nowMillis, excludedClasses, onlyClass);
+            try {
+                scheduler.sleep(claimLatencyMs, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while claiming tasks of category " + category, e);
+            }
+            return tasks;
+        }
+    }
+
+    private static class LatencyStats {
+        private long[] values = new long[1024];
+        private int count;
+        private boolean sorted;
+
+        void add(long value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+            sorted = false;
+        }
+
+        long percentile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!sorted) {
+                Arrays.sort(values, 0, count);
+                sorted = true;
+            }
+            int index = (int) Math.ceil(quantile * count) - 1;
+            return values[Math.max(0, Math.min(count - 1, index))];
+        }
+
+        void print(String name) {
+            System.out.printf("%-18s %10d %10d %10d %10d %10d%n", name, count,
+                    percentile(0.50), percentile(0.90), percentile(0.99), percentile(1.0));
+        }
+    }
+}
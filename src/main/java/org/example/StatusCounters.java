@@ -0,0 +1,227 @@
+package org.example;
+
+import io.prometheus.client.Gauge;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Счётчики задач по категориям и статусам в таблице deferred_status_counts.
+ * Обновляются в тех же транзакциях, что и смена статуса задачи, поэтому чтение
+ * статистики не требует сканирования таблицы категории. Каждый счётчик разбит
+ * на несколько слотов, чтобы параллельные переходы не упирались в одну строку.
+ */
+public final class StatusCounters {
+    public static final String[] STATUSES = {"PENDING", "PROCESSING", "COMPLETED", "FAILED", "CANCELLED"};
+
+    private static final int SLOTS = 16;
+    private static final int MYSQL_DEADLOCK = 1213;
+    private static final int MYSQL_LOCK_WAIT_TIMEOUT = 1205;
+
+    private static final Gauge tasksByStatus = Gauge.build()
+            .name("deferred_tasks")
+            .help("Tasks per category and status")
+            .labelNames("category", "status")
+            .register();
+
+    /** Изменения метрики, которые применятся после фиксации транзакции соединения */
+    private static final Map<Connection, Map<Map.Entry<String, String>, Long>> uncommitted =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private StatusCounters() {
+    }
+
+    public static void createTableIfNotExists(Connection conn) throws SQLException {
+        String sql = """
+            CREATE TABLE IF NOT EXISTS deferred_status_counts (
+                category VARCHAR(50) NOT NULL,
+                status VARCHAR(16) NOT NULL,
+                slot TINYINT NOT NULL,
+                cnt BIGINT NOT NULL DEFAULT 0,
+                PRIMARY KEY (category, status, slot)
+            ) ENGINE=InnoDB""";
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    /**
+     * Учитывает появление задач в статусе; вызывается внутри транзакции вставки
+     */
+    public static void increment(Connection conn, String category, String status, int count) throws SQLException {
+        if (count == 0) {
+            return;
+        }
+        String sql = "INSERT INTO deferred_status_counts (category, status, slot, cnt) VALUES (?, ?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE cnt = cnt + VALUES(cnt)";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, category);
+            stmt.setString(2, status);
+            stmt.setInt(3, ThreadLocalRandom.current().nextInt(SLOTS));
+            stmt.setLong(4, count);
+            stmt.executeUpdate();
+        }
+        uncommitted.computeIfAbsent(conn, c -> new HashMap<>())
+                .merge(Map.entry(category, status), (long) count, Long::sum);
+    }
+
+    /**
+     * Фиксирует транзакцию и только после этого переносит её изменения счётчиков
+     * в метрику, чтобы откат не оставлял метрику расходящейся с таблицей
+     */
+    public static void commit(Connection conn) throws SQLException {
+        conn.commit();
+        Map<Map.Entry<String, String>, Long> deltas = uncommitted.remove(conn);
+        if (deltas != null) {
+            for (Map.Entry<Map.Entry<String, String>, Long> delta : deltas.entrySet()) {
+                tasksByStatus.labels(delta.getKey().getKey(), delta.getKey().getValue()).inc(delta.getValue());
+            }
+        }
+    }
+
+    /**
+     * Откатывает транзакцию вместе с несостоявшимися изменениями метрики
+     */
+    public static void rollback(Connection conn) throws SQLException {
+        uncommitted.remove(conn);
+        conn.rollback();
+    }
+
+    /**
+     * Учитывает переход задач из одного статуса в другой; вызывается внутри транзакции перехода.
+     * Обе строки счётчиков меняются одним INSERT в порядке (status, slot): переходы в разные
+     * стороны (захват и повтор) блокируют их в одном порядке и не образуют взаимной блокировки.
+     */
+    public static void transition(Connection conn, String category,
+                                  String fromStatus, String toStatus, int count) throws SQLException {
+        if (count == 0) {
+            return;
+        }
+        boolean fromFirst = fromStatus.compareTo(toStatus) < 0;
+        String first = fromFirst ? fromStatus : toStatus;
+        String second = fromFirst ? toStatus : fromStatus;
+        String sql = "INSERT INTO deferred_status_counts (category, status, slot, cnt) VALUES (?, ?, ?, ?), (?, ?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE cnt = cnt + VALUES(cnt)";
+
+        int slot = ThreadLocalRandom.current().nextInt(SLOTS);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, category);
+            stmt.setString(2, first);
+            stmt.setInt(3, slot);
+            stmt.setLong(4, fromFirst ? -count : count);
+            stmt.setString(5, category);
+            stmt.setString(6, second);
+            stmt.setInt(7, slot);
+            stmt.setLong(8, fromFirst ? count : -count);
+            stmt.executeUpdate();
+        }
+        Map<Map.Entry<String, String>, Long> deltas = uncommitted.computeIfAbsent(conn, c -> new HashMap<>());
+        deltas.merge(Map.entry(category, fromStatus), (long) -count, Long::sum);
+        deltas.merge(Map.entry(category, toStatus), (long) count, Long::sum);
+    }
+
+    /**
+     * Взаимная блокировка (1213) или таймаут ожидания блокировки (1205): MySQL откатил
+     * транзакцию или оператор, и её можно повторить целиком
+     */
+    public static boolean isTransientLockFailure(SQLException ex) {
+        return ex.getErrorCode() == MYSQL_DEADLOCK || ex.getErrorCode() == MYSQL_LOCK_WAIT_TIMEOUT;
+    }
+
+    public static Map<String, Long> read(Connection conn, String category) throws SQLException {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (String status : STATUSES) {
+            counts.put(status, 0L);
+        }
+
+        String sql = "SELECT status, SUM(cnt) FROM deferred_status_counts WHERE category = ? GROUP BY status";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, category);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    counts.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Пересчитывает счётчики категории по самой таблице и устраняет накопившийся дрейф.
+     * Счётчики и таблица читаются из одного согласованного снимка без блокировок: переходы
+     * меняют их в одной транзакции, поэтому разница между подсчётом и счётчиками в снимке -
+     * это и есть дрейф. Он добавляется к счётчикам короткой отдельной транзакцией, так что
+     * долгий подсчёт не задерживает переходы, идущие параллельно.
+     */
+    public static Map<String, Long> reconcile(Connection conn, String category) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        int isolation = conn.getTransactionIsolation();
+        try {
+            conn.setAutoCommit(false);
+            conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            Map<String, Long> drift = new LinkedHashMap<>();
+            try {
+                Map<String, Long> counters = read(conn, category);
+                Map<String, Long> counts = new LinkedHashMap<>();
+                for (String status : STATUSES) {
+                    counts.put(status, 0L);
+                }
+                try (Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery(
+                             "SELECT status, COUNT(*) FROM deferred_" + category + " GROUP BY status")) {
+                    while (rs.next()) {
+                        counts.put(rs.getString(1), rs.getLong(2));
+                    }
+                }
+                // Окончательно упавшие задачи лежат в DLQ; FAILED в самой таблице - строки старых версий
+                try (Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + DeadLetterQueue.tableName(category))) {
+                    rs.next();
+                    counts.merge("FAILED", rs.getLong(1), Long::sum);
+                }
+                conn.commit();
+
+                for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                    long delta = entry.getValue() - counters.getOrDefault(entry.getKey(), 0L);
+                    if (delta != 0) {
+                        drift.put(entry.getKey(), delta);
+                    }
+                }
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+
+            try {
+                for (Map.Entry<String, Long> entry : drift.entrySet()) {
+                    increment(conn, category, entry.getKey(), Math.toIntExact(entry.getValue()));
+                }
+                commit(conn);
+            } catch (SQLException ex) {
+                rollback(conn);
+                throw ex;
+            }
+
+            Map<String, Long> counts = read(conn, category);
+            conn.commit();
+            for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                tasksByStatus.labels(category, entry.getKey()).set(entry.getValue());
+            }
+            return counts;
+        } finally {
+            conn.setTransactionIsolation(isolation);
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+}
@@ -2,4 +2,21 @@ package org.example;
 
 public interface Task {
     void execute(TaskParams params) throws Exception;
+
+    /**
+     * Таймаут выполнения задачи этого класса в миллисекундах.
+     * 0 - использовать таймаут категории из {@link WorkerParams}.
+     * Пачки {@link BatchTask} выполняются без таймаута.
+     */
+    default long getTimeoutMs() {
+        return 0;
+    }
+
+    /**
+     * Политика задержек между повторами для задач этого класса.
+     * null - использовать политику категории из {@link RetryPolicyParam}.
+     */
+    default RetryPolicy getRetryPolicy() {
+        return null;
+    }
 }
@@ -0,0 +1,202 @@
+package org.example;
+
+import io.prometheus.client.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Учёт стоимости выполнения задач по классам: процессорное время потока,
+ * время выполнения и выделенная память. Заодно следит за долгими задачами
+ * и пишет в лог стек потока задачи, превысившей порог.
+ */
+final class TaskCostTracker {
+    private static final Logger logger = LoggerFactory.getLogger(TaskCostTracker.class);
+
+    static final String SLOW_TASK_PROPERTY = "worker.slow-task-ms";
+    static final long DEFAULT_SLOW_TASK_MS = 30000;
+    private static final long WATCHDOG_INTERVAL_MS = 1000;
+
+    private static final Counter cpuSeconds = Counter.build()
+            .name("deferred_task_cpu_seconds")
+            .help("Thread CPU time spent executing tasks")
+            .labelNames("category", "task_class")
+            .register();
+
+    private static final Counter wallSeconds = Counter.build()
+            .name("deferred_task_wall_seconds")
+            .help("Wall-clock time spent executing tasks")
+            .labelNames("category", "task_class")
+            .register();
+
+    private static final Counter allocatedBytes = Counter.build()
+            .name("deferred_task_allocated_bytes")
+            .help("Heap bytes allocated by task execution threads")
+            .labelNames("category", "task_class")
+            .register();
+
+    private static final Counter slowTasks = Counter.build()
+            .name("deferred_slow_tasks")
+            .help("Tasks that ran longer than the slow-task threshold")
+            .labelNames("category", "task_class")
+            .register();
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean allocationBean =
+            threadBean instanceof com.sun.management.ThreadMXBean bean && bean.isThreadAllocatedMemorySupported()
+                    ? bean : null;
+    private static final boolean cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+
+    private static final ConcurrentMap<String, ClassCost> costs = new ConcurrentHashMap<>();
+
+    static {
+        if (cpuTimeSupported && !threadBean.isThreadCpuTimeEnabled()) {
+            threadBean.setThreadCpuTimeEnabled(true);
+        }
+        if (allocationBean != null && !allocationBean.isThreadAllocatedMemoryEnabled()) {
+            allocationBean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    private final ConcurrentMap<Sample, Boolean> running = new ConcurrentHashMap<>();
+    private final long slowTaskMs;
+
+    TaskCostTracker(ScheduledExecutorService scheduler, long slowTaskMs) {
+        this.slowTaskMs = slowTaskMs;
+        if (slowTaskMs > 0) {
+            scheduler.scheduleWithFixedDelay(this::reportSlowTasks,
+                    WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Начинает замер в текущем потоке. Процессорное время и память считаются
+     * только для кода, выполняющегося в этом потоке до {@link #end}.
+     */
+    Sample begin(TaskData task) {
+        Sample sample = new Sample(task, Thread.currentThread(), true);
+        running.put(sample, Boolean.TRUE);
+        return sample;
+    }
+
+    /**
+     * Замер асинхронной задачи: её код выполняется в чужих потоках,
+     * поэтому учитывается только время от запуска до завершения.
+     */
+    Sample beginAsync(TaskData task) {
+        return new Sample(task, null, false);
+    }
+
+    void end(Sample sample, int executions) {
+        running.remove(sample);
+
+        long wallNanos = System.nanoTime() - sample.wallStart;
+        long cpuNanos = 0;
+        long allocated = 0;
+        if (sample.threadBound) {
+            if (cpuTimeSupported) {
+                cpuNanos = threadBean.getCurrentThreadCpuTime() - sample.cpuStart;
+            }
+            if (allocationBean != null) {
+                allocated = allocationBean.getCurrentThreadAllocatedBytes() - sample.allocatedStart;
+            }
+        }
+
+        String category = sample.task.getCategory();
+        String taskClass = sample.task.getTaskClass();
+        wallSeconds.labels(category, taskClass).inc(wallNanos / 1e9);
+        if (cpuNanos > 0) {
+            cpuSeconds.labels(category, taskClass).inc(cpuNanos / 1e9);
+        }
+        if (allocated > 0) {
+            allocatedBytes.labels(category, taskClass).inc(allocated);
+        }
+
+        ClassCost cost = costs.computeIfAbsent(taskClass, ClassCost::new);
+        cost.executions.add(executions);
+        cost.wallNanos.add(wallNanos);
+        cost.cpuNanos.add(cpuNanos);
+        cost.allocatedBytes.add(allocated);
+    }
+
+    private void reportSlowTasks() {
+        long now = System.nanoTime();
+        for (Sample sample : running.keySet()) {
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(now - sample.wallStart);
+            if (sample.reported || elapsedMs < slowTaskMs) {
+                continue;
+            }
+            sample.reported = true;
+
+            TaskData task = sample.task;
+            slowTasks.labels(task.getCategory(), task.getTaskClass()).inc();
+            StringBuilder stack = new StringBuilder();
+            for (StackTraceElement element : sample.thread.getStackTrace()) {
+                stack.append("\n\tat ").append(element);
+            }
+            logger.warn("Task {} [{}] in category {} running for {} ms on {}{}",
+                    task.getId(), task.getTaskClass(), task.getCategory(), elapsedMs,
+                    sample.thread.getName(), stack);
+        }
+    }
+
+    /**
+     * Классы задач, отсортированные по процессорному времени (а где оно
+     * недоступно - по времени выполнения), с начала работы процесса
+     */
+    static List<ClassCost> top(int limit) {
+        List<ClassCost> sorted = new ArrayList<>(costs.values());
+        sorted.sort(Comparator.comparingLong(ClassCost::getCpuNanos)
+                .thenComparingLong(ClassCost::getWallNanos)
+                .reversed());
+        return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+    }
+
+    static final class Sample {
+        final TaskData task;
+        final Thread thread;
+        final boolean threadBound;
+        final long wallStart;
+        final long cpuStart;
+        final long allocatedStart;
+        volatile boolean reported;
+
+        Sample(TaskData task, Thread thread, boolean threadBound) {
+            this.task = task;
+            this.thread = thread;
+            this.threadBound = threadBound;
+            this.cpuStart = threadBound && cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+            this.allocatedStart = threadBound && allocationBean != null
+                    ? allocationBean.getCurrentThreadAllocatedBytes() : 0;
+            this.wallStart = System.nanoTime();
+        }
+    }
+
+    static final class ClassCost {
+        private final String taskClass;
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+        private final LongAdder wallNanos = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+
+        ClassCost(String taskClass) {
+            this.taskClass = taskClass;
+        }
+
+        String getTaskClass() { return taskClass; }
+        long getExecutions() { return executions.sum(); }
+        long getCpuNanos() { return cpuNanos.sum(); }
+        long getWallNanos() { return wallNanos.sum(); }
+        long getAllocatedBytes() { return allocatedBytes.sum(); }
+    }
+}
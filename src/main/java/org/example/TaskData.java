@@ -1,13 +1,11 @@
 package org.example;
 
-import java.time.LocalDateTime;
-
 public class TaskData {
     private final long id;
     private final String category;
     private final String taskClass;
     private final String params;
-    private final LocalDateTime scheduledTime;
+    private final long scheduledTimeMillis;
     private final int maxAttempts;
     private final boolean exponentialBackoff;
     private final double backoffBase;
@@ -15,14 +13,14 @@ public class TaskData {
     private final int attemptCount;
 
     public TaskData(long id, String category, String taskClass, String params,
-                    LocalDateTime scheduledTime, int maxAttempts,
+                    long scheduledTimeMillis, int maxAttempts,
                     boolean exponentialBackoff, double backoffBase,
                     long maxBackoffMs, int attemptCount) {
         this.id = id;
         this.category = category;
         this.taskClass = taskClass;
         this.params = params;
-        this.scheduledTime = scheduledTime;
+        this.scheduledTimeMillis = scheduledTimeMillis;
         this.maxAttempts = maxAttempts;
         this.exponentialBackoff = exponentialBackoff;
         this.backoffBase = backoffBase;
@@ -35,10 +33,18 @@ public class TaskData {
     public String getCategory() { return category; }
     public String getTaskClass() { return taskClass; }
     public String getParams() { return params; }
-    public LocalDateTime getScheduledTime() { return scheduledTime; }
+    public long getScheduledTimeMillis() { return scheduledTimeMillis; }
     public int getMaxAttempts() { return maxAttempts; }
     public boolean isExponentialBackoff() { return exponentialBackoff; }
     public double getBackoffBase() { return backoffBase; }
     public long getMaxBackoffMs() { return maxBackoffMs; }
     public int getAttemptCount() { return attemptCount; }
+
+    /**
+     * Копия задачи с другим числом сделанных попыток - для повтора без возврата в базу
+     */
+    public TaskData withAttemptCount(int attemptCount) {
+        return new TaskData(id, category, taskClass, params, scheduledTimeMillis, maxAttempts,
+                exponentialBackoff, backoffBase, maxBackoffMs, attemptCount);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package org.example;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * События Java Flight Recorder для фаз жизни задачи.
+ * По умолчанию выключены и включаются профилем deferred-tasks.jfc;
+ * выключенное событие сводится к пустым begin/commit.
+ */
+final class TaskEvents {
+    static final String PREFIX = "org.example.";
+
+    private TaskEvents() {
+    }
+
+    @Name(PREFIX + "Schedule")
+    @Label("Task Schedule")
+    @Description("Постановка задачи в очередь")
+    @Category({"Deferred Tasks"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class ScheduleEvent extends Event {
+        @Label("Category")
+        String category;
+
+        @Label("Task Class")
+        String taskClass;
+
+        @Label("Task Id")
+        long taskId;
+
+        @Label("Coalesced")
+        boolean coalesced;
+    }
+
+    @Name(PREFIX + "Claim")
+    @Label("Task Claim")
+    @Description("Захват пачки готовых задач воркером")
+    @Category({"Deferred Tasks"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class ClaimEvent extends Event {
+        @Label("Category")
+        String category;
+
+        @Label("Claim Size")
+        int claimSize;
+
+        @Label("Claimed")
+        int claimed;
+    }
+
+    @Name(PREFIX + "Execute")
+    @Label("Task Execute")
+    @Description("Выполнение пользовательского кода задачи")
+    @Category({"Deferred Tasks"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class ExecuteEvent extends Event {
+        @Label("Category")
+        String category;
+
+        @Label("Task Class")
+        String taskClass;
+
+        @Label("Task Id")
+        long taskId;
+
+        @Label("Batch Size")
+        int batchSize;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name(PREFIX + "Outcome")
+    @Label("Task Outcome Write")
+    @Description("Запись исхода выполнения задачи в базу")
+    @Category({"Deferred Tasks"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class OutcomeEvent extends Event {
+        @Label("Category")
+        String category;
+
+        @Label("Task Id")
+        long taskId;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    static String outcomeOf(Exception failure) {
+        return failure == null ? "SUCCESS" : failure.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,97 @@
+package org.example;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Предикат по задачам категории: класс задачи, значение ключа в params
+ * и диапазон запланированного времени. Незаданные условия не ограничивают выборку.
+ */
+public class TaskFilter {
+
+    private final String taskClass;
+    private final String paramKey;
+    private final String paramValue;
+    private final LocalDateTime scheduledFrom;
+    private final LocalDateTime scheduledTo;
+
+    private TaskFilter(String taskClass, String paramKey, String paramValue,
+                       LocalDateTime scheduledFrom, LocalDateTime scheduledTo) {
+        this.taskClass = taskClass;
+        this.paramKey = paramKey;
+        this.paramValue = paramValue;
+        this.scheduledFrom = scheduledFrom;
+        this.scheduledTo = scheduledTo;
+    }
+
+    public static TaskFilter all() {
+        return new TaskFilter(null, null, null, null, null);
+    }
+
+    public TaskFilter withTaskClass(Class<? extends Task> clazz) {
+        return new TaskFilter(clazz.getName(), paramKey, paramValue, scheduledFrom, scheduledTo);
+    }
+
+    /**
+     * Значение ключа верхнего уровня в JSON-параметрах задачи. Сжатые и вынесенные
+     * параметры сравниваются по столбцу param_keys, где есть только скалярные значения
+     * не длиннее {@link TaskPayloads#MAX_FILTER_VALUE_LENGTH} символов: вложенные
+     * объекты, массивы и длинные строки у таких задач не совпадают. Не совпадают и
+     * задачи, сжатые до появления param_keys - у них столбец пуст.
+     */
+    public TaskFilter withParam(String key, String value) {
+        return new TaskFilter(taskClass, key, value, scheduledFrom, scheduledTo);
+    }
+
+    /**
+     * Запланированное время в полуинтервале [from, to); любая граница может быть null
+     */
+    public TaskFilter withScheduledBetween(LocalDateTime from, LocalDateTime to) {
+        return new TaskFilter(taskClass, paramKey, paramValue, from, to);
+    }
+
+    /**
+     * SQL-условие для WHERE, начинающееся с " AND", либо пустая строка
+     */
+    String toSqlCondition() {
+        StringBuilder sql = new StringBuilder();
+        if (taskClass != null) {
+            sql.append(" AND task_class = ?");
+        }
+        if (paramKey != null) {
+            // Сжатые и вынесенные параметры не JSON, для них ключи берутся из param_keys
+            sql.append(" AND JSON_UNQUOTE(JSON_EXTRACT(CASE WHEN param_keys IS NOT NULL THEN param_keys")
+                    .append(" WHEN JSON_VALID(params) THEN params END, ?)) = ?");
+        }
+        if (scheduledFrom != null) {
+            sql.append(" AND scheduled_time >= ?");
+        }
+        if (scheduledTo != null) {
+            sql.append(" AND scheduled_time < ?");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Значения параметров для {@link #toSqlCondition()} в том же порядке
+     */
+    List<Object> toSqlParameters() {
+        List<Object> parameters = new ArrayList<>();
+        if (taskClass != null) {
+            parameters.add(taskClass);
+        }
+        if (paramKey != null) {
+            parameters.add("$.\"" + paramKey.replace("\"", "\\\"") + "\"");
+            parameters.add(paramValue);
+        }
+        if (scheduledFrom != null) {
+            parameters.add(Timestamp.valueOf(scheduledFrom));
+        }
+        if (scheduledTo != null) {
+            parameters.add(Timestamp.valueOf(scheduledTo));
+        }
+        return parameters;
+    }
+}
\ No newline at end of file
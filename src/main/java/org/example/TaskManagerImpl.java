@@ -2,47 +2,345 @@ package org.example;
 
 import javax.sql.DataSource;
 import java.sql.*;
+import java.time.Clock;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class TaskManagerImpl implements TaskManager {
+    private static final int IDEMPOTENCY_CACHE_SIZE = 10_000;
+    private static final int CANCEL_CHUNK_SIZE = 1000;
+    private static final int MYSQL_DEADLOCK = 1213;
+    private static final int COALESCE_DEADLOCK_ATTEMPTS = 3;
+    /** Строк в одном INSERT из {@link #scheduleBatch}: 10 параметров на строку, в запросе не больше 65535 */
+    static final int MAX_BATCH_ROWS = 65535 / 10;
+
     private final DataSource dataSource;
+    private final Clock clock;
+    private final int compressThreshold = Integer.getInteger(TaskPayloads.COMPRESS_THRESHOLD_PROPERTY, 4096);
+    private final int offloadThreshold = Integer.getInteger(TaskPayloads.OFFLOAD_THRESHOLD_PROPERTY, 0);
+    private final ConcurrentMap<String, IdempotencyCache> idempotencyCaches = new ConcurrentHashMap<>();
+    private final List<CancellationListener> cancellationListeners = new CopyOnWriteArrayList<>();
+    private final List<ScheduleListener> scheduleListeners = new CopyOnWriteArrayList<>();
 
     public TaskManagerImpl(DataSource dataSource) {
+        this(dataSource, Clock.systemDefaultZone());
+    }
+
+    /**
+     * @param clock источник текущего времени для окон слияния; подменяется в тестах
+     */
+    public TaskManagerImpl(DataSource dataSource, Clock clock) {
         this.dataSource = dataSource;
+        this.clock = clock;
     }
 
     @Override
     public long schedule(String category, Class<Task> clazz, TaskParams params, LocalDateTime time) {
-        String sql = "INSERT INTO deferred_" + category +
-                " (category, task_class, params, scheduled_time, status, " +
-                "max_attempts, exponential_backoff, backoff_base, max_backoff_ms) " +
-                "VALUES (?, ?, ?, ?, 'PENDING', ?, ?, ?, ?)";
+        String idempotencyKey = params.getIdempotencyKey();
+        IdempotencyCache cache = null;
+        if (idempotencyKey != null) {
+            cache = idempotencyCaches.computeIfAbsent(category,
+                    c -> new IdempotencyCache(IDEMPOTENCY_CACHE_SIZE));
+            Long cachedId = cache.get(idempotencyKey);
+            if (cachedId != null) {
+                return cachedId;
+            }
+        }
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        TaskEvents.ScheduleEvent event = new TaskEvents.ScheduleEvent();
+        event.begin();
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    Long mergedId = params.getCoalesceKey() != null
+                            ? coalesceIntoPending(conn, category, params, time)
+                            : null;
+                    long id = mergedId != null ? mergedId : insertTask(conn, category, clazz, params, time);
+                    StatusCounters.commit(conn);
+                    if (cache != null) {
+                        cache.put(idempotencyKey, id);
+                    }
+                    if (event.shouldCommit()) {
+                        event.category = category;
+                        event.taskClass = clazz.getName();
+                        event.taskId = id;
+                        event.coalesced = mergedId != null;
+                        event.commit();
+                    }
+                    for (ScheduleListener listener : scheduleListeners) {
+                        listener.onScheduled(category, Timestamp.valueOf(time).getTime());
+                    }
+                    return id;
+                } catch (SQLException | RuntimeException ex) {
+                    StatusCounters.rollback(conn);
+                    throw ex;
+                }
+            } catch (SQLException ex) {
+                // Два первых вызова с новым ключом слияния держат gap-блокировку пустого SELECT ... FOR UPDATE
+                // и взаимно блокируют вставку. MySQL откатывает один из них; повтор находит строку другого
+                // и сливается с ней.
+                if (ex.getErrorCode() == MYSQL_DEADLOCK && params.getCoalesceKey() != null
+                        && attempt < COALESCE_DEADLOCK_ATTEMPTS) {
+                    continue;
+                }
+                throw new RuntimeException("Failed to schedule task", ex);
+            }
+        }
+    }
+
+    /**
+     * Планирует задачи одной транзакцией с многострочным INSERT вместо отдельного запроса
+     * на каждую задачу. Ключи идемпотентности и слияния здесь не учитываются: такие
+     * задачи нужно планировать через {@link #schedule}. Пачка больше {@value #MAX_BATCH_ROWS}
+     * строк пишется несколькими INSERT в той же транзакции: в одном запросе MySQL принимает
+     * не больше 65535 параметров.
+     *
+     * @return id задач в порядке entries
+     */
+    public long[] scheduleBatch(String category, List<BatchEntry> entries) {
+        if (entries.isEmpty()) {
+            return new long[0];
+        }
+
+        long[] ids = new long[entries.size()];
+        long earliest = Long.MAX_VALUE;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (int from = 0; from < entries.size(); from += MAX_BATCH_ROWS) {
+                    List<BatchEntry> part = entries.subList(from, Math.min(entries.size(), from + MAX_BATCH_ROWS));
+                    earliest = Math.min(earliest, insertBatch(conn, category, part, ids, from));
+                }
+                StatusCounters.increment(conn, category, "PENDING", entries.size());
+                StatusCounters.commit(conn);
+            } catch (SQLException | RuntimeException ex) {
+                StatusCounters.rollback(conn);
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException("Failed to schedule batch of " + entries.size() + " tasks", ex);
+        }
+
+        for (ScheduleListener listener : scheduleListeners) {
+            listener.onScheduled(category, earliest);
+        }
+        return ids;
+    }
+
+    /**
+     * Один многострочный INSERT; id записываются в ids начиная с offset
+     *
+     * @return самое раннее запланированное время пачки
+     */
+    private long insertBatch(Connection conn, String category, List<BatchEntry> entries,
+                             long[] ids, int offset) throws SQLException {
+        StringBuilder sql = new StringBuilder(200 + entries.size() * 36)
+                .append("INSERT INTO deferred_").append(category)
+                .append(" (category, task_class, params, param_keys, scheduled_time, status, ")
+                .append("max_attempts, exponential_backoff, backoff_base, max_backoff_ms) VALUES ");
+        for (int i = 0; i < entries.size(); i++) {
+            sql.append(i == 0 ? "" : ",").append("(?, ?, ?, ?, ?, 'PENDING', ?, ?, ?, ?)");
+        }
+
+        long earliest = Long.MAX_VALUE;
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString(), Statement.RETURN_GENERATED_KEYS)) {
+            int index = 1;
+            for (BatchEntry entry : entries) {
+                TaskParams params = entry.params;
+                Timestamp time = Timestamp.valueOf(entry.time);
+                earliest = Math.min(earliest, time.getTime());
+                stmt.setString(index++, category);
+                stmt.setString(index++, entry.clazz.getName());
+                String json = params.toJson();
+                String storedParams = TaskPayloads.encode(conn, category, json, compressThreshold, offloadThreshold);
+                stmt.setString(index++, storedParams);
+                stmt.setString(index++, TaskPayloads.filterKeys(json, storedParams));
+                stmt.setTimestamp(index++, time);
+                stmt.setInt(index++, params.getMaxAttempts());
+                stmt.setBoolean(index++, params.isExponentialBackoff());
+                stmt.setDouble(index++, params.getBackoffBase());
+                stmt.setLong(index++, params.getMaxBackoffMs());
+            }
+            stmt.executeUpdate();
+
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                for (int i = 0; i < entries.size(); i++) {
+                    if (!rs.next()) {
+                        throw new SQLException("Failed to get task IDs");
+                    }
+                    ids[offset + i] = rs.getLong(1);
+                }
+            }
+        }
+        return earliest;
+    }
+
+    private long insertTask(Connection conn, String category, Class<Task> clazz, TaskParams params,
+                            LocalDateTime time) throws SQLException {
+        String idempotencyKey = params.getIdempotencyKey();
+        if (idempotencyKey != null) {
+            // Уникальный индекс не видит задачи, ушедшие в DLQ. Блокирующее чтение не даёт
+            // задаче с этим ключом переехать в DLQ между проверкой и вставкой.
+            Long deadLettered = lookupDeadLetteredKey(conn, category, idempotencyKey, true);
+            if (deadLettered != null) {
+                return deadLettered;
+            }
+        }
+        String sql = "INSERT INTO deferred_" + category +
+                " (category, task_class, params, param_keys, scheduled_time, status, " +
+                "max_attempts, exponential_backoff, backoff_base, max_backoff_ms, idempotency_key, coalesce_key) " +
+                "VALUES (?, ?, ?, ?, ?, 'PENDING', ?, ?, ?, ?, ?, ?)";
 
+        String json = params.toJson();
+        String storedParams = TaskPayloads.encode(conn, category, json, compressThreshold, offloadThreshold);
+        try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             stmt.setString(1, category);
             stmt.setString(2, clazz.getName());
-            stmt.setString(3, params.toJson());
-            stmt.setTimestamp(4, Timestamp.valueOf(time));
-            stmt.setInt(5, params.getMaxAttempts());
-            stmt.setBoolean(6, params.isExponentialBackoff());
-            stmt.setDouble(7, params.getBackoffBase());
-            stmt.setLong(8, params.getMaxBackoffMs());
+            stmt.setString(3, storedParams);
+            stmt.setString(4, TaskPayloads.filterKeys(json, storedParams));
+            stmt.setTimestamp(5, Timestamp.valueOf(time));
+            stmt.setInt(6, params.getMaxAttempts());
+            stmt.setBoolean(7, params.isExponentialBackoff());
+            stmt.setDouble(8, params.getBackoffBase());
+            stmt.setLong(9, params.getMaxBackoffMs());
+            stmt.setString(10, idempotencyKey);
+            stmt.setString(11, params.getCoalesceKey());
 
-            stmt.executeUpdate();
+            try {
+                stmt.executeUpdate();
+            } catch (SQLIntegrityConstraintViolationException duplicate) {
+                if (idempotencyKey == null) {
+                    throw duplicate;
+                }
+                TaskPayloads.delete(conn, category, storedParams);
+                return findByIdempotencyKey(conn, category, idempotencyKey);
+            }
 
             try (ResultSet rs = stmt.getGeneratedKeys()) {
                 if (rs.next()) {
+                    StatusCounters.increment(conn, category, "PENDING", 1);
                     return rs.getLong(1);
                 }
             }
-        } catch (SQLException ex) {
-            throw new RuntimeException("Failed to schedule task", ex);
         }
         throw new RuntimeException("Failed to get task ID");
     }
 
+    /**
+     * Ищет задачу в PENDING с тем же ключом слияния, созданную в пределах окна,
+     * и сливает с ней новый вызов. Возвращает id задачи или null, если сливать не с чем.
+     *
+     * <p>Ключ идемпотентности вызова записывается в слитую строку, чтобы повтор после
+     * промаха кэша вернул ту же задачу. Строка с другим ключом для слияния не подходит:
+     * второй ключ записать некуда.
+     */
+    private Long coalesceIntoPending(Connection conn, String category, TaskParams params,
+                                     LocalDateTime time) throws SQLException {
+        String idempotencyKey = params.getIdempotencyKey();
+        if (idempotencyKey != null) {
+            Long existing = lookupIdempotencyKey(conn, category, idempotencyKey);
+            if (existing != null) {
+                return existing;
+            }
+        }
+
+        String selectSql = "SELECT id, params FROM deferred_" + category +
+                " WHERE coalesce_key = ? AND status = 'PENDING' AND created_at >= ? " +
+                (idempotencyKey != null ? "AND idempotency_key IS NULL " : "") +
+                "ORDER BY id LIMIT 1 FOR UPDATE";
+
+        long existingId;
+        String existingParams;
+        try (PreparedStatement stmt = conn.prepareStatement(selectSql)) {
+            stmt.setString(1, params.getCoalesceKey());
+            stmt.setTimestamp(2, Timestamp.valueOf(
+                    LocalDateTime.now(clock).minusNanos(params.getCoalesceWindowMs() * 1_000_000L)));
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                existingId = rs.getLong(1);
+                existingParams = rs.getString(2);
+            }
+        }
+
+        String updateSql = params.getCoalesceMode() == TaskParams.CoalesceMode.UPDATE_PARAMS
+                ? "UPDATE deferred_" + category + " SET params = ?, param_keys = ?, scheduled_time = ?"
+                : "UPDATE deferred_" + category + " SET scheduled_time = LEAST(scheduled_time, ?)";
+        updateSql += (idempotencyKey != null ? ", idempotency_key = ?" : "") + " WHERE id = ?";
+
+        try (PreparedStatement stmt = conn.prepareStatement(updateSql)) {
+            int index = 1;
+            if (params.getCoalesceMode() == TaskParams.CoalesceMode.UPDATE_PARAMS) {
+                String json = params.toJson();
+                String storedParams = TaskPayloads.encode(conn, category, json, compressThreshold, offloadThreshold);
+                stmt.setString(index++, storedParams);
+                stmt.setString(index++, TaskPayloads.filterKeys(json, storedParams));
+            }
+            stmt.setTimestamp(index++, Timestamp.valueOf(time));
+            if (idempotencyKey != null) {
+                stmt.setString(index++, idempotencyKey);
+            }
+            stmt.setLong(index, existingId);
+            stmt.executeUpdate();
+        }
+        if (params.getCoalesceMode() == TaskParams.CoalesceMode.UPDATE_PARAMS) {
+            // Заменённые параметры больше ни на что не ссылаются
+            TaskPayloads.delete(conn, category, existingParams);
+        }
+        return existingId;
+    }
+
+    private long findByIdempotencyKey(Connection conn, String category, String idempotencyKey) throws SQLException {
+        Long id = lookupIdempotencyKey(conn, category, idempotencyKey);
+        if (id == null) {
+            throw new SQLException("Task with idempotency key " + idempotencyKey + " not found in deferred_" + category);
+        }
+        return id;
+    }
+
+    /**
+     * Задача с ключом идемпотентности в таблице категории или в DLQ
+     */
+    private Long lookupIdempotencyKey(Connection conn, String category, String idempotencyKey) throws SQLException {
+        String sql = "SELECT id FROM deferred_" + category + " WHERE idempotency_key = ?";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, idempotencyKey);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+        }
+        return lookupDeadLetteredKey(conn, category, idempotencyKey, false);
+    }
+
+    private Long lookupDeadLetteredKey(Connection conn, String category, String idempotencyKey,
+                                       boolean lock) throws SQLException {
+        String sql = "SELECT id FROM " + DeadLetterQueue.tableName(category) +
+                " WHERE idempotency_key = ? LIMIT 1" + (lock ? " FOR SHARE" : "");
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, idempotencyKey);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+        }
+        return null;
+    }
+
     @Override
     public boolean cancel(String category, long taskId) {
         String sql = "UPDATE deferred_" + category +
@@ -52,10 +350,179 @@ public class TaskManagerImpl implements TaskManager {
         try (Connection conn = dataSource.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            stmt.setLong(1, taskId);
-            return stmt.executeUpdate() > 0;
+            conn.setAutoCommit(false);
+            try {
+                stmt.setLong(1, taskId);
+                int updated = stmt.executeUpdate();
+                StatusCounters.transition(conn, category, "PENDING", "CANCELLED", updated);
+                StatusCounters.commit(conn);
+                return updated > 0;
+            } catch (SQLException ex) {
+                StatusCounters.rollback(conn);
+                throw ex;
+            }
         } catch (SQLException ex) {
             throw new RuntimeException("Failed to cancel task", ex);
         }
     }
+
+    /**
+     * Отменяет все задачи категории, подходящие под фильтр: ожидающие и уже
+     * захваченные воркерами. Обновление идёт порциями по {@value #CANCEL_CHUNK_SIZE}
+     * строк в отдельных транзакциях, чтобы не держать блокировки, нужные запросу захвата.
+     * После этого слушатели получают id отменённых захваченных задач, чтобы выбросить
+     * их из локальных очередей.
+     */
+    @Override
+    public int cancel(String category, TaskFilter filter) {
+        int cancelled = 0;
+        // Ожидающие задачи не бывают в очередях воркеров, поэтому запоминаются только захваченные
+        Set<Long> claimedIds = new HashSet<>();
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            // Статусы отменяются раздельно, чтобы точно знать, какие счётчики уменьшать
+            cancelled += cancelInChunks(conn, category, "PENDING", filter, null);
+            cancelled += cancelInChunks(conn, category, "PROCESSING", filter, claimedIds);
+        } catch (SQLException ex) {
+            throw new RuntimeException("Failed to cancel tasks after " + cancelled + " rows", ex);
+        } finally {
+            if (!claimedIds.isEmpty()) {
+                for (CancellationListener listener : cancellationListeners) {
+                    listener.onCancelled(category, claimedIds);
+                }
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Порция выбирается с блокировкой строк и отменяется по id, так что в {@code cancelledIds}
+     * попадают ровно те строки, которые сменили статус. Слушатели не проверяют фильтр заново:
+     * задача, захваченная уже после отмены порции, под неё не попадает.
+     *
+     * <p>Строки, заблокированные захватом или записью исхода, пропускаются (SKIP LOCKED),
+     * а не ожидаются: отмена не останавливает захват на горячей категории. Такая строка
+     * попадает в одну из следующих порций, если к тому времени ещё подходит под статус;
+     * порции выбираются, пока очередная не окажется пустой.
+     */
+    private int cancelInChunks(Connection conn, String category, String status,
+                               TaskFilter filter, Set<Long> cancelledIds) throws SQLException {
+        String selectSql = "SELECT id FROM deferred_" + category +
+                " WHERE status = ?" + filter.toSqlCondition() +
+                " ORDER BY id LIMIT " + CANCEL_CHUNK_SIZE + " FOR UPDATE SKIP LOCKED";
+        List<Object> parameters = filter.toSqlParameters();
+
+        int cancelled = 0;
+        try (PreparedStatement select = conn.prepareStatement(selectSql)) {
+            select.setString(1, status);
+            for (int i = 0; i < parameters.size(); i++) {
+                select.setObject(i + 2, parameters.get(i));
+            }
+
+            int selected;
+            do {
+                List<Long> ids = new ArrayList<>(CANCEL_CHUNK_SIZE);
+                int updated;
+                try {
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong(1));
+                        }
+                    }
+                    updated = ids.isEmpty() ? 0 : cancelByIds(conn, category, status, ids);
+                    StatusCounters.transition(conn, category, status, "CANCELLED", updated);
+                    StatusCounters.commit(conn);
+                } catch (SQLException ex) {
+                    StatusCounters.rollback(conn);
+                    throw ex;
+                }
+                if (cancelledIds != null) {
+                    cancelledIds.addAll(ids);
+                }
+                cancelled += updated;
+                selected = ids.size();
+            } while (selected > 0);
+        }
+        return cancelled;
+    }
+
+    private int cancelByIds(Connection conn, String category, String status,
+                            List<Long> ids) throws SQLException {
+        StringBuilder sql = new StringBuilder("UPDATE deferred_").append(category)
+                .append(" SET status = 'CANCELLED' WHERE status = ? AND id IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            stmt.setString(1, status);
+            for (int i = 0; i < ids.size(); i++) {
+                stmt.setLong(i + 2, ids.get(i));
+            }
+            return stmt.executeUpdate();
+        }
+    }
+
+    public void addCancellationListener(CancellationListener listener) {
+        cancellationListeners.add(listener);
+    }
+
+    @FunctionalInterface
+    public interface CancellationListener {
+        void onCancelled(String category, Set<Long> taskIds);
+    }
+
+    public void addScheduleListener(ScheduleListener listener) {
+        scheduleListeners.add(listener);
+    }
+
+    /**
+     * Получает время выполнения каждой задачи, запланированной через этот экземпляр
+     */
+    @FunctionalInterface
+    public interface ScheduleListener {
+        void onScheduled(String category, long scheduledTimeMillis);
+    }
+
+    /**
+     * Задача для {@link #scheduleBatch}
+     */
+    public static class BatchEntry {
+        final Class<Task> clazz;
+        final TaskParams params;
+        final LocalDateTime time;
+
+        public BatchEntry(Class<Task> clazz, TaskParams params, LocalDateTime time) {
+            this.clazz = clazz;
+            this.params = params;
+            this.time = time;
+        }
+    }
+
+    /**
+     * LRU-кэш ключ идемпотентности -> id задачи. Повторы недавно запланированных задач
+     * отвечают из памяти; при промахе дубликат всё равно отсекается уникальным индексом,
+     * а для задач, ушедших в DLQ, - поиском ключа в DLQ.
+     */
+    private static class IdempotencyCache {
+        private final Map<String, Long> entries;
+
+        IdempotencyCache(int capacity) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized Long get(String key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(String key, long id) {
+            entries.put(key, id);
+        }
+    }
 }
\ No newline at end of file
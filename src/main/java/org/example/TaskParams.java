@@ -4,11 +4,17 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class TaskParams {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
     private final String jsonData;
     private final int maxAttempts;
     private final boolean exponentialBackoff;
     private final double backoffBase;
     private final long maxBackoffMs;
+    private final String idempotencyKey;
+    private final String coalesceKey;
+    private final long coalesceWindowMs;
+    private final CoalesceMode coalesceMode;
 
     public TaskParams(String jsonData) {
         this(jsonData, 1, false, 0, 0);
@@ -17,29 +23,94 @@ public class TaskParams {
     public TaskParams(String jsonData, int maxAttempts,
                       boolean exponentialBackoff,
                       double backoffBase, long maxBackoffMs) {
-        this.jsonData = validateJson(jsonData);
+        this(jsonData, maxAttempts, exponentialBackoff, backoffBase, maxBackoffMs, null);
+    }
+
+    public TaskParams(String jsonData, int maxAttempts,
+                      boolean exponentialBackoff,
+                      double backoffBase, long maxBackoffMs,
+                      String idempotencyKey) {
+        this(jsonData, maxAttempts, exponentialBackoff, backoffBase, maxBackoffMs,
+                idempotencyKey, null, 0, CoalesceMode.KEEP_EARLIEST);
+    }
+
+    private TaskParams(String jsonData, int maxAttempts,
+                       boolean exponentialBackoff,
+                       double backoffBase, long maxBackoffMs,
+                       String idempotencyKey, String coalesceKey,
+                       long coalesceWindowMs, CoalesceMode coalesceMode) {
+        this(jsonData, maxAttempts, exponentialBackoff, backoffBase, maxBackoffMs,
+                idempotencyKey, coalesceKey, coalesceWindowMs, coalesceMode, true);
+    }
+
+    private TaskParams(String jsonData, int maxAttempts,
+                       boolean exponentialBackoff,
+                       double backoffBase, long maxBackoffMs,
+                       String idempotencyKey, String coalesceKey,
+                       long coalesceWindowMs, CoalesceMode coalesceMode,
+                       boolean validate) {
+        this.jsonData = validate ? validateJson(jsonData) : jsonData;
         this.maxAttempts = maxAttempts;
         this.exponentialBackoff = exponentialBackoff;
         this.backoffBase = backoffBase;
         this.maxBackoffMs = maxBackoffMs;
+        this.idempotencyKey = idempotencyKey;
+        this.coalesceKey = coalesceKey;
+        this.coalesceWindowMs = coalesceWindowMs;
+        this.coalesceMode = coalesceMode;
+    }
+
+    /**
+     * Параметры задачи, прочитанной из БД: JSON уже проверен при планировании,
+     * поэтому повторный разбор на пути выполнения пропускается.
+     */
+    static TaskParams fromStored(String jsonData, int maxAttempts,
+                                 boolean exponentialBackoff,
+                                 double backoffBase, long maxBackoffMs) {
+        return new TaskParams(jsonData, maxAttempts, exponentialBackoff, backoffBase, maxBackoffMs,
+                null, null, 0, CoalesceMode.KEEP_EARLIEST, false);
     }
 
     private String validateJson(String json) {
         try {
-            new ObjectMapper().readTree(json);
+            objectMapper.readTree(json);
             return json;
         } catch (JsonProcessingException e) {
             throw new IllegalArgumentException("Invalid JSON provided", e);
         }
     }
 
+    /**
+     * Возвращает копию параметров с ключом идемпотентности.
+     * Повторный schedule с тем же ключом вернёт id уже созданной задачи. Ключ занят,
+     * пока строка задачи есть в таблице категории (в любом статусе, включая COMPLETED
+     * и CANCELLED) или в DLQ, то есть пока её не удалят вручную.
+     */
+    public TaskParams withIdempotencyKey(String idempotencyKey) {
+        return new TaskParams(jsonData, maxAttempts, exponentialBackoff,
+                backoffBase, maxBackoffMs, idempotencyKey,
+                coalesceKey, coalesceWindowMs, coalesceMode);
+    }
+
+    /**
+     * Возвращает копию параметров с ключом слияния. Если в течение окна уже создана
+     * задача с тем же ключом и она ещё в PENDING, schedule сливает вызов с ней
+     * вместо добавления новой строки. С ключом идемпотентности вызов сливается только
+     * с задачей без ключа, и ключ записывается в неё.
+     */
+    public TaskParams withCoalesceKey(String coalesceKey, long coalesceWindowMs, CoalesceMode coalesceMode) {
+        return new TaskParams(jsonData, maxAttempts, exponentialBackoff,
+                backoffBase, maxBackoffMs, idempotencyKey,
+                coalesceKey, coalesceWindowMs, coalesceMode);
+    }
+
     public String toJson() {
         return jsonData; // Уже валидирован в конструкторе
     }
 
     public <T> T fromJson(Class<T> valueType) {
         try {
-            return new ObjectMapper().readValue(jsonData, valueType);
+            return objectMapper.readValue(jsonData, valueType);
         } catch (JsonProcessingException e) {
             throw new RuntimeException("Failed to deserialize task params", e);
         }
@@ -64,4 +135,27 @@ public class TaskParams {
     public long getMaxBackoffMs() {
         return maxBackoffMs;
     }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public long getCoalesceWindowMs() {
+        return coalesceWindowMs;
+    }
+
+    public CoalesceMode getCoalesceMode() {
+        return coalesceMode;
+    }
+
+    public enum CoalesceMode {
+        /** Оставить параметры существующей задачи и более раннее из двух времён */
+        KEEP_EARLIEST,
+        /** Заменить параметры и время существующей задачи новыми (debounce) */
+        UPDATE_PARAMS
+    }
 }
\ No newline at end of file
@@ -0,0 +1,221 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Хранение параметров задач. Небольшие параметры лежат в столбце params как есть,
+ * параметры больше порога сжатия - сжатыми Deflate в Base64 с маркером в первом символе,
+ * а очень большие выносятся в таблицу deferred_&lt;category&gt;_payload: в params остаётся
+ * маркер со ссылкой, и сами данные читаются только перед выполнением задачи.
+ * JSON не может начинаться с управляющих символов, поэтому маркеры не спутать с данными.
+ *
+ * <p>Для сжатых и вынесенных параметров в столбец param_keys пишется JSON-объект со
+ * скалярными значениями верхнего уровня, по нему {@link TaskFilter} ищет такие задачи.
+ */
+public final class TaskPayloads {
+    static final char COMPRESSED_MARKER = '\u0001';
+    static final char OFFLOADED_MARKER = '\u0002';
+
+    public static final String COMPRESS_THRESHOLD_PROPERTY = "task.params.compress-threshold";
+    public static final String OFFLOAD_THRESHOLD_PROPERTY = "task.params.offload-threshold";
+
+    /**
+     * Строки длиннее в param_keys не попадают: по ним не фильтруют, а столбец раздувают
+     */
+    static final int MAX_FILTER_VALUE_LENGTH = 255;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private TaskPayloads() {
+    }
+
+    static String tableName(String category) {
+        return "deferred_" + category + "_payload";
+    }
+
+    public static void createTableIfNotExists(Connection conn, String category) throws SQLException {
+        String sql = String.format("""
+            CREATE TABLE IF NOT EXISTS %s (
+                id BIGINT PRIMARY KEY AUTO_INCREMENT,
+                data MEDIUMBLOB NOT NULL,
+                created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+            ) ENGINE=InnoDB""", tableName(category));
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    /**
+     * Значение для столбца params. Пишется в транзакции вставки задачи, так что
+     * вынесенные данные появляются и откатываются вместе с задачей.
+     *
+     * @param compressThreshold размер JSON в символах, начиная с которого он сжимается; 0 - не сжимать
+     * @param offloadThreshold  размер, начиная с которого данные выносятся в отдельную таблицу; 0 - не выносить
+     */
+    static String encode(Connection conn, String category, String json,
+                         int compressThreshold, int offloadThreshold) throws SQLException {
+        if (offloadThreshold > 0 && json.length() >= offloadThreshold) {
+            String sql = "INSERT INTO " + tableName(category) + " (data) VALUES (?)";
+            try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                stmt.setBytes(1, deflate(json));
+                stmt.executeUpdate();
+                try (ResultSet rs = stmt.getGeneratedKeys()) {
+                    if (rs.next()) {
+                        return OFFLOADED_MARKER + Long.toString(rs.getLong(1));
+                    }
+                }
+            }
+            throw new SQLException("Failed to get payload ID");
+        }
+        if (compressThreshold > 0 && json.length() >= compressThreshold) {
+            return COMPRESSED_MARKER + Base64.getEncoder().encodeToString(deflate(json));
+        }
+        return json;
+    }
+
+    /**
+     * Значение для столбца param_keys: скалярные значения верхнего уровня, если
+     * параметры сжаты или вынесены, иначе null - такие параметры фильтруются по params
+     *
+     * @param json   исходные параметры
+     * @param stored результат {@link #encode} для них
+     */
+    static String filterKeys(String json, String stored) {
+        if (!isEncoded(stored)) {
+            return null;
+        }
+        try {
+            JsonNode root = objectMapper.readTree(json);
+            ObjectNode keys = objectMapper.createObjectNode();
+            if (root != null && root.isObject()) {
+                Iterator<Map.Entry<String, JsonNode>> fields = root.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    JsonNode value = field.getValue();
+                    if (value.isValueNode() && !value.isNull()
+                            && (!value.isTextual() || value.textValue().length() <= MAX_FILTER_VALUE_LENGTH)) {
+                        keys.set(field.getKey(), value);
+                    }
+                }
+            }
+            return objectMapper.writeValueAsString(keys);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid params JSON", e);
+        }
+    }
+
+    static boolean isOffloaded(String stored) {
+        return !stored.isEmpty() && stored.charAt(0) == OFFLOADED_MARKER;
+    }
+
+    /**
+     * Параметры сжаты или вынесены, то есть в столбце лежит не JSON
+     */
+    static boolean isEncoded(String stored) {
+        return !stored.isEmpty() && (stored.charAt(0) == COMPRESSED_MARKER || stored.charAt(0) == OFFLOADED_MARKER);
+    }
+
+    /**
+     * JSON из значения столбца params; для вынесенных данных нужен {@link #load}
+     */
+    static String decode(String stored) {
+        if (stored.isEmpty()) {
+            return stored;
+        }
+        if (stored.charAt(0) == COMPRESSED_MARKER) {
+            return inflate(Base64.getDecoder().decode(stored.substring(1)));
+        }
+        if (stored.charAt(0) == OFFLOADED_MARKER) {
+            throw new IllegalStateException("Params are stored in the payload table, use load()");
+        }
+        return stored;
+    }
+
+    /**
+     * JSON из значения столбца params с чтением вынесенных данных
+     */
+    static String load(Connection conn, String category, String stored) throws SQLException {
+        if (!isOffloaded(stored)) {
+            return decode(stored);
+        }
+        String sql = "SELECT data FROM " + tableName(category) + " WHERE id = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, Long.parseLong(stored.substring(1)));
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Payload " + stored.substring(1) + " not found in " + tableName(category));
+                }
+                return inflate(rs.getBytes(1));
+            }
+        }
+    }
+
+    /**
+     * Удаляет вынесенные данные, если значение params на них ссылается
+     */
+    static void delete(Connection conn, String category, String stored) throws SQLException {
+        if (!isOffloaded(stored)) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + tableName(category) + " WHERE id = ?")) {
+            stmt.setLong(1, Long.parseLong(stored.substring(1)));
+            stmt.executeUpdate();
+        }
+    }
+
+    private static byte[] deflate(String json) {
+        byte[] input = json.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated compressed params");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted compressed params", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
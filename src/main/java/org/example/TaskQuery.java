@@ -0,0 +1,272 @@
+package org.example;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Постраничное чтение задач категории с фильтрами по статусу, классу, параметрам
+ * и времени. Страницы отсчитываются по ключу (scheduled_time, id), а не через OFFSET,
+ * поэтому каждая следующая страница стоит столько же, сколько первая.
+ * Каждая страница читается отдельным коротким запросом без блокировок строк.
+ *
+ * <p>Согласованного снимка между страницами нет, а scheduled_time изменяемый: повтор
+ * задачи переносит её время вперёд. Задача, повторённая во время обхода, может быть
+ * прочитана дважды или пропущена; обход, которому это важно, стоит вести по задачам
+ * в конечных статусах.
+ */
+public class TaskQuery {
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private final String category;
+    private final List<String> statuses;
+    private final TaskFilter filter;
+    private final int pageSize;
+    private final boolean descending;
+    private final PageToken after;
+
+    private TaskQuery(String category, List<String> statuses, TaskFilter filter,
+                      int pageSize, boolean descending, PageToken after) {
+        this.category = category;
+        this.statuses = statuses;
+        this.filter = filter;
+        this.pageSize = pageSize;
+        this.descending = descending;
+        this.after = after;
+    }
+
+    public static TaskQuery of(String category) {
+        return new TaskQuery(category, List.of(), TaskFilter.all(), DEFAULT_PAGE_SIZE, false, null);
+    }
+
+    public TaskQuery withStatuses(String... statuses) {
+        return new TaskQuery(category, List.of(statuses), filter, pageSize, descending, after);
+    }
+
+    /**
+     * Класс задачи, значение параметра и диапазон запланированного времени
+     */
+    public TaskQuery withFilter(TaskFilter filter) {
+        return new TaskQuery(category, statuses, filter, pageSize, descending, after);
+    }
+
+    public TaskQuery withPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        return new TaskQuery(category, statuses, filter, pageSize, descending, after);
+    }
+
+    /**
+     * Сначала самые поздние задачи
+     */
+    public TaskQuery descending() {
+        return new TaskQuery(category, statuses, filter, pageSize, true, after);
+    }
+
+    /**
+     * Продолжение выборки после страницы, вернувшей этот ключ
+     */
+    public TaskQuery after(PageToken token) {
+        return new TaskQuery(category, statuses, filter, pageSize, descending, token);
+    }
+
+    public Page fetchPage(DataSource dataSource) {
+        try (Connection conn = dataSource.getConnection()) {
+            return fetchPage(conn);
+        } catch (SQLException ex) {
+            throw new RuntimeException("Failed to query tasks of category " + category, ex);
+        }
+    }
+
+    /**
+     * Окончательно упавшие задачи лежат не в таблице категории, а в {@link DeadLetterQueue}.
+     * Если выборка включает FAILED (или не ограничена по статусу), к странице добавляются
+     * строки DLQ со статусом FAILED: обе части отбираются по тому же ключу и сливаются.
+     */
+    public Page fetchPage(Connection conn) throws SQLException {
+        boolean withDeadLetters = statuses.isEmpty() || statuses.contains("FAILED");
+        StringBuilder sql = new StringBuilder();
+        if (withDeadLetters) {
+            sql.append("SELECT * FROM ((");
+        }
+        appendBranch(sql, "deferred_" + category, "status", true);
+        if (withDeadLetters) {
+            sql.append(") UNION ALL (");
+            appendBranch(sql, DeadLetterQueue.tableName(category), "'FAILED'", false);
+            String order = descending ? " DESC" : "";
+            sql.append(")) merged ORDER BY scheduled_time").append(order).append(", id").append(order)
+                    .append(" LIMIT ?");
+        }
+
+        List<TaskRecord> tasks = new ArrayList<>(pageSize);
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            int index = bindBranch(stmt, 1, true);
+            if (withDeadLetters) {
+                index = bindBranch(stmt, index, false);
+                stmt.setInt(index, pageSize);
+            }
+            stmt.setFetchSize(pageSize);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String storedParams = rs.getString(8);
+                    Timestamp createdAt = rs.getTimestamp(7);
+                    tasks.add(new TaskRecord(
+                            rs.getLong(1),
+                            category,
+                            rs.getString(2),
+                            rs.getString(3),
+                            rs.getTimestamp(4).getTime(),
+                            rs.getInt(5),
+                            rs.getInt(6),
+                            createdAt != null ? createdAt.getTime() : 0,
+                            TaskPayloads.isOffloaded(storedParams) ? null : TaskPayloads.decode(storedParams)
+                    ));
+                }
+            }
+        }
+
+        PageToken next = null;
+        if (tasks.size() == pageSize) {
+            TaskRecord last = tasks.get(tasks.size() - 1);
+            next = new PageToken(last.getScheduledTimeMillis(), last.getId());
+        }
+        return new Page(tasks, next);
+    }
+
+    private void appendBranch(StringBuilder sql, String table, String statusColumn, boolean filterStatuses) {
+        String cmp = descending ? "<" : ">";
+        String order = descending ? " DESC" : "";
+        sql.append("SELECT id, task_class, ").append(statusColumn).append(" AS status, scheduled_time, ")
+                .append("attempt_count, max_attempts, created_at, params FROM ").append(table).append(" WHERE TRUE");
+        if (filterStatuses) {
+            for (int i = 0; i < statuses.size(); i++) {
+                sql.append(i == 0 ? " AND status IN (?" : ",?");
+            }
+            if (!statuses.isEmpty()) {
+                sql.append(')');
+            }
+        }
+        sql.append(filter.toSqlCondition());
+        if (after != null) {
+            // Сравнение кортежей MySQL разворачивает в диапазон по индексу (scheduled_time, id)
+            sql.append(" AND (scheduled_time, id) ").append(cmp).append(" (?, ?)");
+        }
+        sql.append(" ORDER BY scheduled_time").append(order).append(", id").append(order).append(" LIMIT ?");
+    }
+
+    private int bindBranch(PreparedStatement stmt, int index, boolean filterStatuses) throws SQLException {
+        if (filterStatuses) {
+            for (String status : statuses) {
+                stmt.setString(index++, status);
+            }
+        }
+        for (Object parameter : filter.toSqlParameters()) {
+            stmt.setObject(index++, parameter);
+        }
+        if (after != null) {
+            stmt.setTimestamp(index++, new Timestamp(after.scheduledTimeMillis));
+            stmt.setLong(index++, after.id);
+        }
+        stmt.setInt(index++, pageSize);
+        return index;
+    }
+
+    /**
+     * Все подходящие задачи в виде потока. Страницы подгружаются по мере чтения,
+     * каждая своим запросом и соединением, так что в памяти не больше одной страницы,
+     * а выгрузка миллионов строк не держит транзакцию открытой.
+     */
+    public Stream<TaskRecord> stream(DataSource dataSource) {
+        Iterator<TaskRecord> iterator = new Iterator<>() {
+            private TaskQuery query = TaskQuery.this;
+            private Iterator<TaskRecord> page = List.<TaskRecord>of().iterator();
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && !exhausted) {
+                    Page next = query.fetchPage(dataSource);
+                    page = next.getTasks().iterator();
+                    if (next.getNextPage() == null) {
+                        exhausted = true;
+                    } else {
+                        query = query.after(next.getNextPage());
+                    }
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public TaskRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    public static class Page {
+        private final List<TaskRecord> tasks;
+        private final PageToken nextPage;
+
+        Page(List<TaskRecord> tasks, PageToken nextPage) {
+            this.tasks = tasks;
+            this.nextPage = nextPage;
+        }
+
+        public List<TaskRecord> getTasks() {
+            return tasks;
+        }
+
+        /**
+         * Ключ для {@link TaskQuery#after}; null на последней странице
+         */
+        public PageToken getNextPage() {
+            return nextPage;
+        }
+    }
+
+    /**
+     * Позиция в выборке: время и id последней прочитанной задачи.
+     * Строковая форма "время:id" подходит для передачи между запусками утилит.
+     */
+    public static class PageToken {
+        private final long scheduledTimeMillis;
+        private final long id;
+
+        public PageToken(long scheduledTimeMillis, long id) {
+            this.scheduledTimeMillis = scheduledTimeMillis;
+            this.id = id;
+        }
+
+        public static PageToken parse(String token) {
+            int separator = token.indexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid page token: " + token);
+            }
+            return new PageToken(Long.parseLong(token.substring(0, separator)),
+                    Long.parseLong(token.substring(separator + 1)));
+        }
+
+        @Override
+        public String toString() {
+            return scheduledTimeMillis + ":" + id;
+        }
+    }
+}
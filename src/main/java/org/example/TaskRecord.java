@@ -0,0 +1,45 @@
+package org.example;
+
+/**
+ * Строка задачи, прочитанная через {@link TaskQuery}
+ */
+public class TaskRecord {
+    private final long id;
+    private final String category;
+    private final String taskClass;
+    private final String status;
+    private final long scheduledTimeMillis;
+    private final int attemptCount;
+    private final int maxAttempts;
+    private final long createdAtMillis;
+    private final String params;
+
+    public TaskRecord(long id, String category, String taskClass, String status,
+                      long scheduledTimeMillis, int attemptCount, int maxAttempts,
+                      long createdAtMillis, String params) {
+        this.id = id;
+        this.category = category;
+        this.taskClass = taskClass;
+        this.status = status;
+        this.scheduledTimeMillis = scheduledTimeMillis;
+        this.attemptCount = attemptCount;
+        this.maxAttempts = maxAttempts;
+        this.createdAtMillis = createdAtMillis;
+        this.params = params;
+    }
+
+    // Геттеры
+    public long getId() { return id; }
+    public String getCategory() { return category; }
+    public String getTaskClass() { return taskClass; }
+    public String getStatus() { return status; }
+    public long getScheduledTimeMillis() { return scheduledTimeMillis; }
+    public int getAttemptCount() { return attemptCount; }
+    public int getMaxAttempts() { return maxAttempts; }
+    public long getCreatedAtMillis() { return createdAtMillis; }
+
+    /**
+     * JSON-параметры задачи; null, если они вынесены в таблицу deferred_&lt;category&gt;_payload
+     */
+    public String getParams() { return params; }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Хранилище задач со стороны воркера: захват готовых задач и запись исходов.
+ * {@link JdbcTaskStore} работает с таблицами категорий в MySQL, {@link InMemoryTaskStore}
+ * держит задачи в памяти, чтобы {@link Simulation} прогоняла настоящий
+ * {@link WorkerManagerImpl} в виртуальном времени. Каждый вызов - отдельная транзакция.
+ */
+public interface TaskStore {
+
+    /**
+     * Проверяет, что хранилище готово к работе с категориями
+     *
+     * @return описание ошибки по категориям; исправные категории в ответ не попадают
+     */
+    Map<String, String> validate(List<String> categories) throws SQLException;
+
+    /**
+     * Переводит в PROCESSING до limit задач, готовых к nowMillis, в порядке scheduled_time.
+     * excludedClasses и onlyClass сужают выборку для выключателей.
+     */
+    List<TaskData> claim(String category, int limit, long nowMillis,
+                         List<String> excludedClasses, String onlyClass) throws SQLException;
+
+    /**
+     * @return ближайшее scheduled_time среди ожидающих задач или 0, если их нет
+     */
+    long nextDueMillis(String category) throws SQLException;
+
+    /**
+     * Параметры задачи, вынесенные из строки захвата в отдельное хранилище
+     */
+    String loadOffloadedParams(TaskData task) throws SQLException;
+
+    /**
+     * @return false, если задача уже не в PROCESSING (отменена или возвращена)
+     */
+    boolean complete(TaskData task) throws SQLException;
+
+    /**
+     * Возвращает задачу в ожидание с новым номером попытки и временем запуска
+     */
+    boolean retry(TaskData task, int nextAttempt, long nextAttemptMillis) throws SQLException;
+
+    /**
+     * Переносит окончательно упавшую задачу в очередь упавших вместе с ошибкой
+     */
+    boolean deadLetter(TaskData task, Exception error) throws SQLException;
+
+    /**
+     * Возвращает в ожидание захваченные, но не начатые задачи
+     *
+     * @return сколько задач возвращено
+     */
+    int returnUnstarted(String category, List<Long> taskIds) throws SQLException;
+
+    /**
+     * Сверяет счётчики статусов категории с фактическим числом задач
+     *
+     * @return число задач по статусам после сверки
+     */
+    Map<String, Long> reconcileCounters(String category) throws SQLException;
+
+    /**
+     * Сколько соединений доступно потокам воркеров; {@link Integer#MAX_VALUE}, если не ограничено
+     */
+    int connectionLimit();
+}
@@ -0,0 +1,82 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Часы, которые идут только по команде. Передаются в {@link TaskManagerImpl} и
+ * {@link WorkerManagerImpl}, чтобы проверять поведение на сутках работы без ожидания
+ * в реальном времени; в {@link Simulation} их двигает {@link VirtualScheduler}.
+ * Время читают и двигают разные потоки, поэтому оно хранится в {@link AtomicLong}.
+ */
+public class VirtualClock extends Clock {
+    private final ZoneId zone;
+    private final AtomicLong millis;
+
+    public VirtualClock(long startMillis) {
+        this(startMillis, ZoneId.systemDefault());
+    }
+
+    public VirtualClock(long startMillis, ZoneId zone) {
+        this.millis = new AtomicLong(startMillis);
+        this.zone = zone;
+    }
+
+    public void advance(long deltaMs) {
+        if (deltaMs < 0) {
+            throw new IllegalArgumentException("Virtual time cannot go backwards");
+        }
+        millis.addAndGet(deltaMs);
+    }
+
+    public void setMillis(long millis) {
+        long previous = this.millis.getAndAccumulate(millis, Math::max);
+        if (millis < previous) {
+            throw new IllegalArgumentException("Virtual time cannot go backwards");
+        }
+    }
+
+    @Override
+    public long millis() {
+        return millis.get();
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis.get());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        // Часы с другой зоной разделяют время с исходными
+        VirtualClock source = this;
+        return new Clock() {
+            @Override
+            public long millis() {
+                return source.millis();
+            }
+
+            @Override
+            public Instant instant() {
+                return source.instant();
+            }
+
+            @Override
+            public ZoneId getZone() {
+                return zone;
+            }
+
+            @Override
+            public Clock withZone(ZoneId other) {
+                return source.withZone(other);
+            }
+        };
+    }
+}
@@ -0,0 +1,528 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Потоки {@link WorkerManagerImpl} в виртуальном времени. Код воркера выполняется
+ * в настоящих потоках, но время двигает только {@link #step()}: он ждёт, пока все
+ * потоки остановятся (простаивают или ждут в {@link #sleep}), переводит {@link VirtualClock}
+ * на ближайшее событие и отпускает его - таймер планировщика или уснувший поток.
+ * В каждый момент выполняется одна цепочка событий, поэтому прогон с одинаковыми
+ * входными данными повторяется.
+ *
+ * <p>Таймеры планировщика ждут свободный поток этого планировщика, задачи пула воркера -
+ * свободный поток пула, как у настоящих исполнителей. Таймауты задач в виртуальном
+ * времени не поддерживаются: прерывание уснувшего потока нарушает порядок событий.
+ */
+public class VirtualScheduler implements WorkerManagerImpl.ThreadSource, AutoCloseable {
+    private static final Comparator<Entry> TIMELINE_ORDER = Comparator.comparingLong((Entry e) -> e.time)
+            .thenComparingLong(e -> e.key)
+            .thenComparingLong(e -> e.seq);
+    private static final ThreadLocal<Boolean> running = ThreadLocal.withInitial(() -> false);
+
+    private final VirtualClock clock;
+    private final Object lock = new Object();
+    private final TreeSet<Entry> timeline = new TreeSet<>(TIMELINE_ORDER);
+    private final List<View> views = new ArrayList<>();
+    private final List<TrackedPool> pools = new ArrayList<>();
+    private final Set<Thread> poolThreads = ConcurrentHashMap.newKeySet();
+    private long seq;
+    private int active;
+
+    public VirtualScheduler(VirtualClock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduler(String name, int threads) {
+        View view = new View(name, threads);
+        synchronized (lock) {
+            views.add(view);
+        }
+        return view;
+    }
+
+    @Override
+    public ThreadPoolExecutor newWorkerPool(String category, int threads, int queueCapacity) {
+        TrackedPool pool = new TrackedPool(category, threads, queueCapacity);
+        synchronized (lock) {
+            pools.add(pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Усыпляет текущий поток на delayMs виртуального времени. Вызывается только из потоков,
+     * которые запустил сам планировщик: задач пула воркера и таймеров.
+     *
+     * @param key порядок пробуждения потоков с одинаковым временем, например id задачи
+     */
+    public void sleep(long delayMs, long key) throws InterruptedException {
+        synchronized (lock) {
+            Sleeper sleeper = new Sleeper(clock.millis() + Math.max(0, delayMs), key, seq++);
+            timeline.add(sleeper);
+            active--;
+            lock.notifyAll();
+            try {
+                while (!sleeper.released) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                if (!sleeper.released) {
+                    timeline.remove(sleeper);
+                    active++;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Ждёт, пока все потоки остановятся, и отпускает ближайшее событие
+     *
+     * @return false, если событий не осталось
+     */
+    public boolean step() throws InterruptedException {
+        Timer timer;
+        synchronized (lock) {
+            while (!quiescent()) {
+                lock.wait();
+            }
+            Entry next = null;
+            for (Entry entry : timeline) {
+                if (entry.eligible()) {
+                    next = entry;
+                    break;
+                }
+            }
+            if (next == null) {
+                return false;
+            }
+            timeline.remove(next);
+            if (next.time > clock.millis()) {
+                clock.setMillis(next.time);
+            }
+            active++;
+            if (next instanceof Sleeper sleeper) {
+                sleeper.released = true;
+                lock.notifyAll();
+                return true;
+            }
+            timer = (Timer) next;
+            timer.view.busy++;
+        }
+        try {
+            timer.view.threads.execute(timer::run);
+        } catch (RejectedExecutionException e) {
+            synchronized (lock) {
+                timer.view.busy--;
+                active--;
+                timer.done = true;
+                lock.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Задача выполняется потоком пула воркера, а не вызывающим потоком (CallerRunsPolicy)
+     */
+    public boolean isPoolThread() {
+        return poolThreads.contains(Thread.currentThread());
+    }
+
+    @Override
+    public void close() {
+        List<ExecutorService> executors = new ArrayList<>();
+        synchronized (lock) {
+            for (View view : views) {
+                executors.add(view);
+            }
+            executors.addAll(pools);
+        }
+        for (ExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean quiescent() {
+        if (active > 0) {
+            return false;
+        }
+        // Переданная пулу задача ещё не началась, хотя свободный поток есть
+        for (TrackedPool pool : pools) {
+            if (!pool.isShutdown() && pool.handoffs > 0 && pool.busy < pool.getCorePoolSize()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private abstract static class Entry {
+        long time;
+        final long key;
+        long seq;
+
+        Entry(long time, long key, long seq) {
+            this.time = time;
+            this.key = key;
+            this.seq = seq;
+        }
+
+        abstract boolean eligible();
+    }
+
+    private static class Sleeper extends Entry {
+        boolean released;
+
+        Sleeper(long time, long key, long seq) {
+            super(time, key, seq);
+        }
+
+        @Override
+        boolean eligible() {
+            return true;
+        }
+    }
+
+    /**
+     * Таймер планировщика; period > 0 - с фиксированной частотой, period < 0 - с фиксированной паузой
+     */
+    private class Timer extends Entry implements ScheduledFuture<Object> {
+        final View view;
+        final Callable<?> action;
+        final long period;
+        boolean cancelled;
+        boolean done;
+        Object result;
+        Throwable failure;
+
+        Timer(View view, Callable<?> action, long time, long period) {
+            super(time, 0, 0);
+            this.view = view;
+            this.action = action;
+            this.period = period;
+        }
+
+        @Override
+        boolean eligible() {
+            return view.busy < view.size;
+        }
+
+        void run() {
+            running.set(true);
+            Object value = null;
+            Throwable error = null;
+            try {
+                value = action.call();
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                running.set(false);
+                synchronized (lock) {
+                    view.busy--;
+                    active--;
+                    if (period != 0 && error == null && !cancelled && !view.shutdown) {
+                        time = period > 0 ? time + period : clock.millis() - period;
+                        enqueue(this);
+                    } else {
+                        result = value;
+                        failure = error;
+                        done = true;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (lock) {
+                if (done) {
+                    return false;
+                }
+                cancelled = true;
+                if (timeline.remove(this)) {
+                    done = true;
+                    lock.notifyAll();
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (lock) {
+                return cancelled;
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized (lock) {
+                return done || cancelled;
+            }
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            synchronized (lock) {
+                while (!done) {
+                    lock.wait();
+                }
+                if (cancelled) {
+                    throw new CancellationException();
+                }
+                if (failure != null) {
+                    throw new ExecutionException(failure);
+                }
+                return result;
+            }
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+            return get();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - clock.millis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private void enqueue(Timer timer) {
+        timer.seq = seq++;
+        timeline.add(timer);
+    }
+
+    /**
+     * Планировщик, таймеры которого срабатывают по виртуальному времени на своих потоках
+     */
+    private class View extends AbstractExecutorService implements ScheduledExecutorService {
+        final int size;
+        final ExecutorService threads;
+        int busy;
+        boolean shutdown;
+
+        View(String name, int size) {
+            this.size = size;
+            this.threads = Executors.newFixedThreadPool(size, new DaemonThreadFactory("virtual-" + name, null));
+        }
+
+        private Timer add(Callable<?> action, long delay, long period, TimeUnit unit) {
+            synchronized (lock) {
+                if (shutdown) {
+                    throw new RejectedExecutionException("Scheduler is shut down");
+                }
+                Timer timer = new Timer(this, action, clock.millis() + Math.max(0, unit.toMillis(delay)),
+                        unit.toMillis(period));
+                enqueue(timer);
+                lock.notifyAll();
+                return timer;
+            }
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return add(Executors.callable(command), delay, 0, unit);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            return (ScheduledFuture<V>) add(callable, delay, 0, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            return add(Executors.callable(command), initialDelay, Math.max(1, period), unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            return add(Executors.callable(command), initialDelay, -Math.max(1, delay), unit);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void shutdown() {
+            synchronized (lock) {
+                shutdown = true;
+                Iterator<Entry> entries = timeline.iterator();
+                while (entries.hasNext()) {
+                    if (entries.next() instanceof Timer timer && timer.view == this) {
+                        entries.remove();
+                        timer.cancelled = true;
+                        timer.done = true;
+                    }
+                }
+                lock.notifyAll();
+            }
+            threads.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            threads.shutdownNow();
+            return List.of();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            synchronized (lock) {
+                return shutdown;
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return threads.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return threads.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * Пул воркера, который отмечает переданные задачи: пока задача не начала выполняться
+     * на свободном потоке, время не двигается. execute возвращается, только когда задача
+     * началась или осталась в очереди занятого пула, поэтому заполнение очереди
+     * и выполнение в вызывающем потоке не зависят от гонок потоков.
+     */
+    private class TrackedPool extends ThreadPoolExecutor {
+        int handoffs;
+        int busy;
+
+        TrackedPool(String category, int threads, int queueCapacity) {
+            super(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueCapacity),
+                    new DaemonThreadFactory("virtual-worker-" + category, poolThreads));
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            Handoff handoff = new Handoff(command);
+            synchronized (lock) {
+                handoffs++;
+            }
+            try {
+                super.execute(handoff);
+            } catch (RuntimeException e) {
+                handoff.abandon();
+                throw e;
+            }
+            synchronized (lock) {
+                try {
+                    while (!handoff.started && !isShutdown() && busy < getCorePoolSize()) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private class Handoff implements Runnable {
+            final Runnable command;
+            boolean started;
+
+            Handoff(Runnable command) {
+                this.command = command;
+            }
+
+            void abandon() {
+                synchronized (lock) {
+                    if (!started) {
+                        started = true;
+                        handoffs--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+
+            @Override
+            public void run() {
+                // В вызывающем потоке (CallerRunsPolicy) задача выполняется внутри уже учтённого события
+                boolean nested = running.get();
+                synchronized (lock) {
+                    started = true;
+                    handoffs--;
+                    if (!nested) {
+                        busy++;
+                        active++;
+                    }
+                    lock.notifyAll();
+                }
+                if (nested) {
+                    command.run();
+                    return;
+                }
+                running.set(true);
+                try {
+                    command.run();
+                } finally {
+                    running.set(false);
+                    synchronized (lock) {
+                        busy--;
+                        active--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final Set<Thread> created;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        DaemonThreadFactory(String prefix, Set<Thread> created) {
+            this.prefix = prefix;
+            this.created = created;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            if (created != null) {
+                created.add(t);
+            }
+            return t;
+        }
+    }
+}
@@ -1,6 +1,19 @@
 package org.example;
 
+import java.util.Map;
+
 public interface WorkerManager {
     void init(WorkerParams workerParams, RetryPolicyParam retryParams);
+    Map<String, Exception> initAll(Map<WorkerParams, RetryPolicyParam> workers);
+    void resize(String category, int threadCount, int claimSize);
+    void enableAutoscaling(String category, AutoscaleParams autoscaleParams);
+    void enableCircuitBreaker(String category, CircuitBreakerParams circuitParams);
+
+    /**
+     * Ручное управление выключателем категории (taskClass = null) или класса задач
+     */
+    void setCircuitState(String category, String taskClass, CircuitBreaker.State state);
+    Map<String, CircuitBreaker.State> getCircuitStates(String category);
+    void drain(String category, long timeoutMs);
     void destroy(String category);
 }
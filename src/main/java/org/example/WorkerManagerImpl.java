@@ -1,306 +1,1323 @@
 package org.example;
 
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
-import java.sql.*;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
+import java.lang.reflect.Constructor;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Clock;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class WorkerManagerImpl implements WorkerManager {
     private static final Logger logger = LoggerFactory.getLogger(WorkerManagerImpl.class);
+    private static final long STUCK_TASK_GRACE_MS = 1000;
+    static final int DEFAULT_CLAIM_SIZE = 100;
+    private static final long AUTOSCALE_INTERVAL_MS = 5000;
+    private static final int RESERVED_POOL_CONNECTIONS = 2;
+    private static final long COUNTERS_RECONCILE_INTERVAL_MS = 10 * 60 * 1000;
+    private static final long DEFAULT_DRAIN_TIMEOUT_MS = 10_000;
+    private static final int MAX_PARALLEL_INIT = 16;
+    static final long MIN_POLL_INTERVAL_MS = 50;
+    static final long MAX_IDLE_POLL_MS = 5000;
+    static final long POLL_INTERVAL_MS = 1000;
+    static final int EXECUTOR_QUEUE_CAPACITY = 100;
+    // Повторы с задержкой не больше интервала опроса не возвращаются в базу
+    static final long LOCAL_RETRY_MAX_DELAY_MS = 1000;
+    static final long LOCAL_RETRY_REQUEUE_MS = 50;
+    private static final long CIRCUIT_POLL_INTERVAL_MS = 1000;
+    private static final long RECONCILE_STARTUP_SPREAD_MS = 60_000;
+    /** Только для проверки isEnabled(): включена ли запись событий выполнения */
+    private static final TaskEvents.ExecuteEvent EXECUTE_EVENT_PROBE = new TaskEvents.ExecuteEvent();
 
-    private final DataSource dataSource;
+    private static final Counter taskTimeouts = Counter.build()
+            .name("deferred_task_timeouts")
+            .help("Tasks interrupted after exceeding their execution timeout")
+            .labelNames("category", "task_class")
+            .register();
+
+    private static final Counter localRetries = Counter.build()
+            .name("deferred_local_retries")
+            .help("Retries kept in the worker's local delay queue instead of the database")
+            .labelNames("category", "task_class")
+            .register();
+
+    private static final Gauge workerThreads = Gauge.build()
+            .name("deferred_worker_threads")
+            .help("Configured worker threads per category")
+            .labelNames("category")
+            .register();
+
+    private static final Gauge dispatchLag = Gauge.build()
+            .name("deferred_dispatch_lag_ms")
+            .help("Lag between scheduled time and claim of the oldest task in the last claim")
+            .labelNames("category")
+            .register();
+
+    private final TaskStore store;
+    private final ThreadSource threads;
+    private final ScheduledExecutorService sharedPollers;
     private final TaskManager taskManager;
+    private final Clock clock;
     private final ConcurrentMap<String, WorkerContext> workerContexts = new ConcurrentHashMap<>();
-    private final AtomicBoolean shutdownFlag = new AtomicBoolean(false);
+    private final ConcurrentMap<String, Constructor<?>> taskConstructors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Optional<RetryPolicy>> classRetryPolicies = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timeoutScheduler;
+    private final ScheduledExecutorService maintenanceScheduler;
+    private final TaskCostTracker costTracker;
 
     public WorkerManagerImpl(TaskManager taskManager, DataSource dataSource) {
+        this(taskManager, dataSource, dataSource);
+    }
+
+    /**
+     * @param claimDataSource   пул для опроса и захвата задач
+     * @param outcomeDataSource пул для записи результатов выполнения
+     */
+    public WorkerManagerImpl(TaskManager taskManager, DataSource claimDataSource, DataSource outcomeDataSource) {
+        this(taskManager, claimDataSource, outcomeDataSource, 0);
+    }
+
+    /**
+     * @param pollerThreads число общих потоков опроса для всех категорий;
+     *                      0 - у каждой категории свой поток, опрашивающий таблицу раз в секунду
+     */
+    public WorkerManagerImpl(TaskManager taskManager, DataSource claimDataSource,
+                             DataSource outcomeDataSource, int pollerThreads) {
+        this(taskManager, claimDataSource, outcomeDataSource, pollerThreads, Clock.systemDefaultZone());
+    }
+
+    /**
+     * @param clock источник времени для захвата готовых задач, задержек повторов и опроса;
+     *              таймеры исполнителей при этом идут по реальному времени
+     */
+    public WorkerManagerImpl(TaskManager taskManager, DataSource claimDataSource,
+                             DataSource outcomeDataSource, int pollerThreads, Clock clock) {
+        this(taskManager, new JdbcTaskStore(claimDataSource, outcomeDataSource), pollerThreads,
+                clock, ThreadSource.SYSTEM);
+    }
+
+    /**
+     * @param store   захват задач и запись исходов
+     * @param threads источник пулов и планировщиков; вместе с {@link VirtualClock} и
+     *                {@link VirtualScheduler} воркер работает в виртуальном времени
+     */
+    public WorkerManagerImpl(TaskManager taskManager, TaskStore store, int pollerThreads,
+                             Clock clock, ThreadSource threads) {
         this.taskManager = taskManager;
-        this.dataSource = dataSource;
-        logger.info("WorkerManager initialized with dataSource: {}", dataSource);
+        this.clock = clock;
+        this.store = store;
+        this.threads = threads;
+        this.sharedPollers = pollerThreads > 0 ? threads.newScheduler("poller", pollerThreads) : null;
+        this.timeoutScheduler = threads.newScheduler("timeouts", 1);
+        this.maintenanceScheduler = threads.newScheduler("maintenance", 1);
+        this.costTracker = new TaskCostTracker(timeoutScheduler,
+                Long.getLong(TaskCostTracker.SLOW_TASK_PROPERTY, TaskCostTracker.DEFAULT_SLOW_TASK_MS));
+        if (taskManager instanceof TaskManagerImpl taskManagerImpl) {
+            taskManagerImpl.addCancellationListener(this::dropCancelledTasks);
+            taskManagerImpl.addScheduleListener(this::onTaskScheduled);
+        }
+        logger.info("WorkerManager initialized with store: {}", store);
     }
 
     @Override
     public void init(WorkerParams workerParams, RetryPolicyParam retryParams) {
         String category = workerParams.getCategory();
-        if (workerContexts.containsKey(category)) {
-            logger.warn("Worker for category {} already initialized", category);
+        if (!workerContexts.containsKey(category)) {
+            String error = validateTableStructures(List.of(category)).get(category);
+            if (error != null) {
+                throw new IllegalStateException(error);
+            }
+        }
+        startWorker(workerParams, retryParams);
+    }
+
+    /**
+     * Запускает воркеры сразу для многих категорий: структура всех таблиц проверяется
+     * одним запросом к information_schema, затем категории инициализируются параллельно.
+     * Возвращает ошибки по категориям, которые запустить не удалось.
+     */
+    @Override
+    public Map<String, Exception> initAll(Map<WorkerParams, RetryPolicyParam> workers) {
+        Map<String, Exception> failures = new ConcurrentHashMap<>();
+        if (workers.isEmpty()) {
+            return failures;
+        }
+
+        List<String> categories = new ArrayList<>();
+        for (WorkerParams workerParams : workers.keySet()) {
+            categories.add(workerParams.getCategory());
+        }
+        Map<String, String> errors = validateTableStructures(categories);
+
+        ExecutorService initExecutor = Executors.newFixedThreadPool(
+                Math.min(workers.size(), MAX_PARALLEL_INIT));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<WorkerParams, RetryPolicyParam> worker : workers.entrySet()) {
+                String category = worker.getKey().getCategory();
+                if (errors.containsKey(category)) {
+                    failures.put(category, new IllegalStateException(errors.get(category)));
+                    continue;
+                }
+                futures.add(initExecutor.submit(() -> {
+                    try {
+                        startWorker(worker.getKey(), worker.getValue());
+                    } catch (Exception e) {
+                        failures.put(category, e);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to initialize workers", e.getCause());
+        } finally {
+            initExecutor.shutdown();
+        }
+        return failures;
+    }
+
+    private void startWorker(WorkerParams workerParams, RetryPolicyParam retryParams) {
+        String category = workerParams.getCategory();
+        WorkerContext existing = workerContexts.get(category);
+        if (existing != null) {
+            if (existing.threadCount != workerParams.getThreadCount()) {
+                resize(category, workerParams.getThreadCount(), existing.claimSize);
+            } else {
+                logger.warn("Worker for category {} already initialized", category);
+            }
             return;
         }
 
         logger.info("Initializing worker for category: {} with {} threads",
                 category, workerParams.getThreadCount());
 
-        validateTableStructure(category);
-
-        WorkerContext context = new WorkerContext(workerParams, retryParams);
+        WorkerContext context = new WorkerContext(workerParams, retryParams, clock);
         workerContexts.put(category, context);
 
-        ThreadPoolExecutor executor = new ThreadPoolExecutor(
-                workerParams.getThreadCount(),
-                workerParams.getThreadCount(),
-                60L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(100),
-                new WorkerThreadFactory(category));
-
+        ThreadPoolExecutor executor = threads.newWorkerPool(category, workerParams.getThreadCount(),
+                EXECUTOR_QUEUE_CAPACITY);
         executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
 
-        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
-                new SchedulerThreadFactory(category));
-
         context.executor = executor;
-        context.scheduler = scheduler;
+        workerThreads.labels(category).set(workerParams.getThreadCount());
 
-        scheduler.scheduleWithFixedDelay(() -> processPendingTasks(category),
-                100, 1000, TimeUnit.MILLISECONDS);
+        // Первые опросы и сверки разнесены во времени по хешу категории, чтобы сотни категорий,
+        // запущенных одновременно, не били в базу в один момент, а повторный запуск был воспроизводим
+        long spread = Integer.toUnsignedLong(category.hashCode() * 0x9E3779B9);
+        if (sharedPollers != null) {
+            schedulePoll(context, category, 100 + spread % 1000);
+        } else {
+            ScheduledExecutorService scheduler = threads.newScheduler(category, 1);
+            context.scheduler = scheduler;
+            scheduler.scheduleWithFixedDelay(() -> processPendingTasks(category),
+                    100 + spread % 1000, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        context.reconcileTask = maintenanceScheduler.scheduleWithFixedDelay(
+                () -> reconcileStatusCounters(category),
+                spread % RECONCILE_STARTUP_SPREAD_MS, COUNTERS_RECONCILE_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
-    private void validateTableStructure(String category) {
-        String tableName = "deferred_" + category;
-        try (Connection conn = dataSource.getConnection()) {
-            DatabaseMetaData meta = conn.getMetaData();
-            try (ResultSet columns = meta.getColumns(null, null, tableName, "STATUS")) {
-                if (!columns.next()) {
-                    throw new IllegalStateException("Table " + tableName + " is missing required STATUS column");
-                }
+    private void reconcileStatusCounters(String category) {
+        try {
+            Map<String, Long> counts = store.reconcileCounters(category);
+            logger.debug("Status counters of category {} reconciled: {}", category, counts);
+        } catch (Exception e) {
+            logger.error("Failed to reconcile status counters for category: " + category, e);
+        }
+    }
+
+    /**
+     * Меняет число потоков и размер захвата работающей категории. Выполняющиеся
+     * и стоящие в очереди задачи не теряются: лишние потоки завершаются, когда освободятся.
+     */
+    @Override
+    public void resize(String category, int threadCount, int claimSize) {
+        WorkerContext context = workerContexts.get(category);
+        if (context == null) {
+            throw new IllegalArgumentException("Worker for category " + category + " is not initialized");
+        }
+        if (threadCount < 1 || claimSize < 1) {
+            throw new IllegalArgumentException("Thread count and claim size must be positive");
+        }
+
+        synchronized (context) {
+            int delta = threadCount - context.threadCount;
+            if (delta != 0) {
+                resizePool(context, delta);
+                context.threadCount = threadCount;
             }
+            context.claimSize = claimSize;
+        }
+        workerThreads.labels(category).set(threadCount);
+        logger.info("Worker for category {} resized to {} threads, claim size {}",
+                category, threadCount, claimSize);
+    }
 
-            String[] requiredColumns = {"id", "category", "task_class", "params", "scheduled_time",
-                    "max_attempts", "attempt_count", "status"};
-            for (String column : requiredColumns) {
-                try (ResultSet cols = meta.getColumns(null, null, tableName, column)) {
-                    if (!cols.next()) {
-                        throw new IllegalStateException("Table " + tableName + " is missing required column: " + column);
-                    }
+    @Override
+    public void enableAutoscaling(String category, AutoscaleParams autoscaleParams) {
+        WorkerContext context = workerContexts.get(category);
+        if (context == null) {
+            throw new IllegalArgumentException("Worker for category " + category + " is not initialized");
+        }
+        if (autoscaleParams.getMinThreads() < 1 || autoscaleParams.getMaxThreads() < autoscaleParams.getMinThreads()) {
+            throw new IllegalArgumentException("Invalid autoscale bounds for category " + category);
+        }
+
+        synchronized (context) {
+            if (context.autoscaleTask != null) {
+                context.autoscaleTask.cancel(false);
+            }
+            context.autoscaleTask = maintenanceScheduler.scheduleWithFixedDelay(
+                    () -> autoscale(category, autoscaleParams),
+                    AUTOSCALE_INTERVAL_MS, AUTOSCALE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        logger.info("Autoscaling enabled for category {}: {}..{} threads, target lag {} ms",
+                category, autoscaleParams.getMinThreads(), autoscaleParams.getMaxThreads(),
+                autoscaleParams.getTargetLagMs());
+    }
+
+    /**
+     * Включает автоматическое срабатывание выключателей категории и её классов задач
+     */
+    @Override
+    public void enableCircuitBreaker(String category, CircuitBreakerParams circuitParams) {
+        WorkerContext context = requireContext(category);
+        context.circuitParams = circuitParams;
+        context.categoryCircuit.configure(circuitParams);
+        for (CircuitBreaker circuit : context.classCircuits.values()) {
+            circuit.configure(circuitParams);
+        }
+        logger.info("Circuit breaker enabled for category {}: failure rate {} over {} tasks, open for {} ms",
+                category, circuitParams.getFailureRateThreshold(), circuitParams.getWindowSize(),
+                circuitParams.getOpenDurationMs());
+    }
+
+    @Override
+    public void setCircuitState(String category, String taskClass, CircuitBreaker.State state) {
+        WorkerContext context = requireContext(category);
+        CircuitBreaker circuit = taskClass == null
+                ? context.categoryCircuit
+                : context.classCircuits.computeIfAbsent(taskClass,
+                        c -> new CircuitBreaker(category, c, context.circuitParams, clock));
+        circuit.force(state);
+        if (state != CircuitBreaker.State.OPEN && sharedPollers != null) {
+            schedulePoll(context, category, 0);
+        }
+    }
+
+    @Override
+    public Map<String, CircuitBreaker.State> getCircuitStates(String category) {
+        WorkerContext context = requireContext(category);
+        Map<String, CircuitBreaker.State> states = new LinkedHashMap<>();
+        states.put(CircuitBreaker.CATEGORY_SCOPE, context.categoryCircuit.getState());
+        for (Map.Entry<String, CircuitBreaker> circuit : context.classCircuits.entrySet()) {
+            states.put(circuit.getKey(), circuit.getValue().getState());
+        }
+        return states;
+    }
+
+    private WorkerContext requireContext(String category) {
+        WorkerContext context = workerContexts.get(category);
+        if (context == null) {
+            throw new IllegalArgumentException("Worker for category " + category + " is not initialized");
+        }
+        return context;
+    }
+
+    /**
+     * Один шаг автомасштабирования: растим пул, если отставание выше целевого и есть
+     * очередь (полный захват или задачи в очереди исполнителя); сжимаем, если пул простаивает.
+     * Рост ограничен размером пула соединений Hikari.
+     */
+    private void autoscale(String category, AutoscaleParams autoscaleParams) {
+        WorkerContext context = workerContexts.get(category);
+        if (context == null || context.draining) {
+            return;
+        }
+
+        try {
+            int threads = context.threadCount;
+            long lagMs = context.lastDispatchLagMs;
+            boolean backlog = context.lastClaimCount >= context.claimSize
+                    || !context.executor.getQueue().isEmpty();
+
+            if (lagMs > autoscaleParams.getTargetLagMs() && backlog && threads < autoscaleParams.getMaxThreads()) {
+                int step = Math.min(Math.max(1, threads / 4), autoscaleParams.getMaxThreads() - threads);
+                step = Math.min(step, availablePoolBudget());
+                if (step > 0) {
+                    logger.info("Autoscaler growing category {} by {} threads (lag {} ms)", category, step, lagMs);
+                    resize(category, threads + step, context.claimSize);
                 }
+            } else if (!backlog && lagMs <= autoscaleParams.getTargetLagMs()
+                    && context.executor.getActiveCount() < threads / 2
+                    && threads > autoscaleParams.getMinThreads()) {
+                logger.info("Autoscaler shrinking category {} by 1 thread", category);
+                resize(category, threads - 1, context.claimSize);
             }
+        } catch (Exception e) {
+            logger.error("Autoscaler failed for category: " + category, e);
+        }
+    }
+
+    /**
+     * Сколько ещё потоков можно добавить, не превысив пул соединений
+     */
+    private int availablePoolBudget() {
+        int connections = store.connectionLimit();
+        if (connections == Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        }
+        int totalThreads = 0;
+        for (WorkerContext context : workerContexts.values()) {
+            totalThreads += context.threadCount;
+        }
+        return Math.max(0, connections - RESERVED_POOL_CONNECTIONS - totalThreads);
+    }
 
-            logger.debug("Table {} structure validation passed", tableName);
+    private Map<String, String> validateTableStructures(List<String> categories) {
+        try {
+            Map<String, String> errors = store.validate(categories);
+            logger.debug("Validated structure of {} tables, {} failed", categories.size(), errors.size());
+            return errors;
         } catch (SQLException e) {
-            throw new RuntimeException("Failed to validate table structure for " + tableName, e);
+            throw new RuntimeException("Failed to validate table structure for " + categories, e);
         }
     }
 
     private void processPendingTasks(String category) {
-        if (shutdownFlag.get()) {
+        WorkerContext context = workerContexts.get(category);
+        if (context == null || context.draining) {
             return;
         }
 
+        try {
+            List<TaskData> tasks = claimTasks(context, category);
+            recordDispatchLag(context, category, tasks);
+            if (!tasks.isEmpty()) {
+                logger.debug("Found {} tasks to process in category: {}", tasks.size(), category);
+                dispatchTasks(context, tasks);
+            }
+        } catch (Exception e) {
+            logger.error("Unexpected error in task scheduler for category: " + category, e);
+        }
+    }
+
+    /**
+     * Планирует следующий опрос категории общим пулом опроса. Более поздний запрос
+     * не отодвигает уже запланированный более ранний опрос.
+     */
+    private void schedulePoll(WorkerContext context, String category, long delayMs) {
+        synchronized (context) {
+            if (context.draining) {
+                return;
+            }
+            long dueAt = clock.millis() + delayMs;
+            if (context.pollTask != null && !context.pollTask.isDone() && context.nextPollAt <= dueAt) {
+                return;
+            }
+            if (context.pollTask != null) {
+                context.pollTask.cancel(false);
+            }
+            context.nextPollAt = dueAt;
+            context.pollTask = sharedPollers.schedule(() -> pollSharedCategory(category),
+                    delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Опрос категории в режиме общего пула. После захвата определяет, когда у категории
+     * появится следующая готовая задача: при полном захвате - сразу, иначе по ближайшему
+     * scheduled_time среди PENDING, но не реже чем раз в {@value #MAX_IDLE_POLL_MS} мс,
+     * чтобы увидеть задачи, добавленные другими узлами.
+     */
+    private void pollSharedCategory(String category) {
         WorkerContext context = workerContexts.get(category);
         if (context == null) {
             return;
         }
 
+        context.pollLock.lock();
         try {
-            List<TaskData> tasks = fetchAndLockTasks(category);
-            if (!tasks.isEmpty()) {
-                logger.debug("Found {} tasks to process in category: {}", tasks.size(), category);
-                for (TaskData task : tasks) {
-                    context.executor.submit(() -> processTaskWithRetry(task));
+            if (context.draining) {
+                return;
+            }
+            context.pollTask = null;
+
+            long delayMs = MAX_IDLE_POLL_MS;
+            try {
+                List<TaskData> tasks = claimTasks(context, category);
+                recordDispatchLag(context, category, tasks);
+                if (!tasks.isEmpty()) {
+                    logger.debug("Found {} tasks to process in category: {}", tasks.size(), category);
+                    dispatchTasks(context, tasks);
+                }
+                if (tasks.size() >= context.claimSize) {
+                    delayMs = 0;
+                } else {
+                    long nextDue = store.nextDueMillis(category);
+                    if (nextDue > 0) {
+                        delayMs = Math.min(MAX_IDLE_POLL_MS, Math.max(MIN_POLL_INTERVAL_MS,
+                                nextDue - clock.millis()));
+                    }
+                    // Готовые задачи могут принадлежать классам с разомкнутым выключателем
+                    if (!allCircuitsClosed(context)) {
+                        delayMs = Math.max(delayMs, CIRCUIT_POLL_INTERVAL_MS);
+                    }
                 }
+            } catch (Exception e) {
+                logger.error("Unexpected error in shared poller for category: " + category, e);
+                delayMs = 1000;
             }
-        } catch (Exception e) {
-            logger.error("Unexpected error in task scheduler for category: " + category, e);
+            schedulePoll(context, category, delayMs);
+        } finally {
+            context.pollLock.unlock();
+        }
+    }
+
+    /**
+     * Слушатель планирования задач {@link TaskManagerImpl}; {@link Simulation} вызывает его,
+     * добавляя задачи в хранилище в памяти
+     */
+    void onTaskScheduled(String category, long scheduledTimeMillis) {
+        if (sharedPollers == null) {
+            return;
+        }
+        WorkerContext context = workerContexts.get(category);
+        if (context != null) {
+            schedulePoll(context, category, Math.max(0, scheduledTimeMillis - clock.millis()));
+        }
+    }
+
+    private void recordDispatchLag(WorkerContext context, String category, List<TaskData> tasks) {
+        long lagMs = 0;
+        if (!tasks.isEmpty()) {
+            lagMs = Math.max(0, clock.millis() - tasks.get(0).getScheduledTimeMillis());
+        }
+        context.lastClaimCount = tasks.size();
+        context.lastDispatchLagMs = lagMs;
+        dispatchLag.labels(category).set(lagMs);
+    }
+
+    private void dispatchTasks(WorkerContext context, List<TaskData> tasks) {
+        Map<String, List<TaskData>> batchable = new LinkedHashMap<>();
+        for (TaskData task : tasks) {
+            context.queuedTasks.put(task.getId(), task);
+            Class<?> clazz = loadTaskClass(task.getTaskClass());
+            if (clazz != null && BatchTask.class.isAssignableFrom(clazz)) {
+                batchable.computeIfAbsent(task.getTaskClass(), k -> new ArrayList<>()).add(task);
+            } else if (clazz != null && AsyncTask.class.isAssignableFrom(clazz)) {
+                dispatchAsyncTask(context, task);
+            } else {
+                context.executor.submit(() -> processTaskWithRetry(context, task));
+            }
+        }
+
+        int batchSize = Math.max(1, context.workerParams.getBatchSize());
+        for (List<TaskData> sameClass : batchable.values()) {
+            for (int from = 0; from < sameClass.size(); from += batchSize) {
+                List<TaskData> batch = sameClass.subList(from, Math.min(from + batchSize, sameClass.size()));
+                context.executor.submit(() -> processBatch(context, batch));
+            }
+        }
+    }
+
+    /**
+     * Помечает захваченные, но ещё не начатые задачи категории, отменённые массовой отменой.
+     * Приходят только id строк, которые действительно перешли в CANCELLED, поэтому
+     * фильтр заново не проверяется.
+     */
+    private void dropCancelledTasks(String category, Set<Long> taskIds) {
+        WorkerContext context = workerContexts.get(category);
+        if (context == null) {
+            return;
+        }
+
+        int dropped = 0;
+        for (Long taskId : taskIds) {
+            if (context.queuedTasks.containsKey(taskId)) {
+                context.cancelledTaskIds.add(taskId);
+                // Задача могла стартовать между проверками: тогда пометка не нужна и не должна копиться
+                if (context.queuedTasks.containsKey(taskId)) {
+                    dropped++;
+                } else {
+                    context.cancelledTaskIds.remove(taskId);
+                }
+            }
+            LocalRetry retry = context.localRetries.remove(taskId);
+            if (retry != null) {
+                if (retry.future != null) {
+                    retry.future.cancel(false);
+                }
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            logger.info("Dropping {} queued tasks of category {} after bulk cancel", dropped, category);
+        }
+    }
+
+    /**
+     * Снимает задачу с учёта очереди; false, если её успели отменить
+     */
+    private boolean startQueuedTask(WorkerContext context, TaskData task) {
+        context.queuedTasks.remove(task.getId());
+        if (context.cancelledTaskIds.remove(task.getId())) {
+            logger.info("Task {} was cancelled while queued, skipping", task.getId());
+            return false;
+        }
+        return true;
+    }
+
+    private Class<?> loadTaskClass(String taskClass) {
+        try {
+            return taskConstructor(taskClass).getDeclaringClass();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Конструктор класса задачи без аргументов; кэшируется, чтобы не искать
+     * класс и конструктор через reflection на каждую задачу
+     */
+    private Constructor<?> taskConstructor(String taskClass) throws ReflectiveOperationException {
+        Constructor<?> constructor = taskConstructors.get(taskClass);
+        if (constructor == null) {
+            constructor = Class.forName(taskClass).getDeclaredConstructor();
+            taskConstructors.put(taskClass, constructor);
+        }
+        return constructor;
+    }
+
+    /**
+     * Запускает асинхронную задачу. Поток воркера занят только на время вызова
+     * executeAsync; результат записывается в колбэке. Число одновременно
+     * выполняющихся асинхронных задач ограничено семафором категории.
+     */
+    private void dispatchAsyncTask(WorkerContext context, TaskData task) {
+        if (!context.asyncPermits.tryAcquire()) {
+            // Разрешения успели занять локальные повторы: поток опроса не ждёт, задача
+            // остаётся захваченной и передаётся позже, как локальный повтор
+            context.queuedTasks.remove(task.getId());
+            LocalRetry retry = new LocalRetry(task, clock.millis() + LOCAL_RETRY_REQUEUE_MS);
+            context.localRetries.put(task.getId(), retry);
+            retry.future = timeoutScheduler.schedule(() -> fireLocalRetry(context, task.getId()),
+                    LOCAL_RETRY_REQUEUE_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        context.executor.submit(() -> runAsyncTask(context, task));
+    }
+
+    /**
+     * Запуск асинхронной задачи в потоке воркера; разрешение семафора уже получено
+     * и освобождается, когда задача завершится
+     */
+    private void runAsyncTask(WorkerContext context, TaskData task) {
+        if (context.draining || !startQueuedTask(context, task)) {
+            context.asyncPermits.release();
+            return;
+        }
+
+        TaskEvents.ExecuteEvent event = beginExecuteEvent();
+
+        TaskCostTracker.Sample cost = costTracker.beginAsync(task);
+        CompletionStage<Void> completion;
+        try {
+            logger.info("Starting async task {} [{}] in category: {}",
+                    task.getId(), task.getTaskClass(), task.getCategory());
+            AsyncTask taskInstance = (AsyncTask) taskConstructor(task.getTaskClass()).newInstance();
+            completion = taskInstance.executeAsync(toTaskParams(task));
+            long timeoutMs = resolveTimeoutMs(context, taskInstance);
+            if (timeoutMs > 0) {
+                completion = completion.toCompletableFuture().orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception ex) {
+            completion = CompletableFuture.failedFuture(ex);
+        }
+
+        completion.whenComplete((result, error) -> {
+            boolean inPool = executeInPool(context, () -> {
+                try {
+                    Exception failure = error == null ? null : unwrapAsyncError(error);
+                    if (failure instanceof TimeoutException) {
+                        taskTimeouts.labels(task.getCategory(), task.getTaskClass()).inc();
+                    }
+                    costTracker.end(cost, 1);
+                    commitExecuteEvent(event, task, 1, failure);
+                    recordCircuit(context, task, failure == null);
+                    if (!tryLocalRetry(context, task, failure)) {
+                        recordOutcome(context, task, failure);
+                    }
+                } finally {
+                    context.asyncPermits.release();
+                }
+            });
+            if (!inPool) {
+                logger.warn("Async task {} completed after category {} was drained, " +
+                        "outcome recorded in the completing thread", task.getId(), task.getCategory());
+            }
+        });
+    }
+
+    /**
+     * Выполняет действие в пуле категории. Остановленный пул задачи молча отбрасывает
+     * (CallerRunsPolicy), поэтому после drain действие выполняется в текущем потоке:
+     * исход задачи не теряется.
+     *
+     * @return false, если действие выполнено в текущем потоке
+     */
+    private boolean executeInPool(WorkerContext context, Runnable action) {
+        AtomicBoolean started = new AtomicBoolean();
+        context.executor.execute(() -> {
+            if (started.compareAndSet(false, true)) {
+                action.run();
+            }
+        });
+        if (context.executor.isShutdown() && started.compareAndSet(false, true)) {
+            action.run();
+            return false;
+        }
+        return true;
+    }
+
+    private Exception unwrapAsyncError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause() : error;
+        return cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+    }
+
+    private void recordOutcome(WorkerContext context, TaskData task, Exception failure) {
+        TaskEvents.OutcomeEvent event = new TaskEvents.OutcomeEvent();
+        event.begin();
+        try {
+            if (failure != null) {
+                handleTaskFailure(context, task, failure);
+                return;
+            }
+            try {
+                store.complete(task);
+                logger.info("Task {} completed successfully", task.getId());
+            } catch (SQLException sqlEx) {
+                logger.error("Database error recording outcome of task {}", task.getId(), sqlEx);
+                handleTaskFailure(context, task, sqlEx);
+            }
+        } finally {
+            if (event.shouldCommit()) {
+                event.category = task.getCategory();
+                event.taskId = task.getId();
+                event.outcome = TaskEvents.outcomeOf(failure);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Захват с учётом выключателей: при разомкнутом выключателе категории захват
+     * пропускается, классы с разомкнутым выключателем исключаются из выборки,
+     * а полуоткрытым достаётся не больше пробных задач. Захватывается не больше задач,
+     * чем свободных разрешений асинхронных задач, чтобы поток опроса не ждал разрешения.
+     */
+    private List<TaskData> claimTasks(WorkerContext context, String category) {
+        int wanted = Math.min(context.claimSize, context.asyncPermits.availablePermits());
+        if (wanted == 0) {
+            return List.of();
+        }
+        int allowed = context.categoryCircuit.permits(wanted);
+        if (allowed == 0) {
+            return List.of();
         }
+
+        List<String> blocked = new ArrayList<>();
+        for (Map.Entry<String, CircuitBreaker> circuit : context.classCircuits.entrySet()) {
+            if (!circuit.getValue().isClosed()) {
+                blocked.add(circuit.getKey());
+            }
+        }
+
+        List<TaskData> tasks = new ArrayList<>(allowed);
+        try {
+            tasks.addAll(fetchAndLockTasks(category, allowed, blocked, null));
+            for (String taskClass : blocked) {
+                // Пробы входят в те же allowed задач, что выдал выключатель категории
+                int remaining = allowed - tasks.size();
+                if (remaining <= 0) {
+                    break;
+                }
+                CircuitBreaker circuit = context.classCircuits.get(taskClass);
+                int probes = circuit.permits(remaining);
+                if (probes == 0) {
+                    continue;
+                }
+                int probed = 0;
+                try {
+                    List<TaskData> probeTasks = fetchAndLockTasks(category, probes, List.of(), taskClass);
+                    probed = probeTasks.size();
+                    tasks.addAll(probeTasks);
+                } catch (RuntimeException ex) {
+                    // Уже захваченные задачи должны уйти на выполнение, пробы подождут следующего опроса
+                    logger.error("Failed to claim probe tasks of class {} in category {}", taskClass, category, ex);
+                    break;
+                } finally {
+                    circuit.releasePermits(Math.max(0, probes - probed));
+                }
+            }
+        } finally {
+            context.categoryCircuit.releasePermits(Math.max(0, allowed - tasks.size()));
+        }
+        return tasks;
     }
 
-    private List<TaskData> fetchAndLockTasks(String category) {
-        List<TaskData> tasks = new ArrayList<>();
-        String tableName = "deferred_" + category;
-        String sql = String.format("""
-            SELECT id, category, task_class, params, scheduled_time, 
-                   max_attempts, exponential_backoff, backoff_base, max_backoff_ms, attempt_count, status
-            FROM %s 
-            WHERE status = 'PENDING' AND scheduled_time <= ? 
-            ORDER BY scheduled_time LIMIT 100 FOR UPDATE SKIP LOCKED""", tableName);
-
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql,
-                     ResultSet.TYPE_FORWARD_ONLY,
-                     ResultSet.CONCUR_UPDATABLE)) {
-
-            conn.setAutoCommit(false);
-            stmt.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
-
-            ResultSet rs = stmt.executeQuery();
-            int lockedCount = 0;
-
-            while (rs.next()) {
-                rs.updateString("status", "PROCESSING");
-                rs.updateRow();
-
-                TaskData task = new TaskData(
-                        rs.getLong("id"),
-                        rs.getString("category"),
-                        rs.getString("task_class"),
-                        rs.getString("params"),
-                        rs.getTimestamp("scheduled_time").toLocalDateTime(),
-                        rs.getInt("max_attempts"),
-                        rs.getBoolean("exponential_backoff"),
-                        rs.getDouble("backoff_base"),
-                        rs.getLong("max_backoff_ms"),
-                        rs.getInt("attempt_count")
-                );
-                tasks.add(task);
-                lockedCount++;
-            }
-
-            conn.commit();
-            logger.trace("Locked {} tasks for processing in category: {}", lockedCount, category);
+    private boolean allCircuitsClosed(WorkerContext context) {
+        if (!context.categoryCircuit.isClosed()) {
+            return false;
+        }
+        for (CircuitBreaker circuit : context.classCircuits.values()) {
+            if (!circuit.isClosed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void recordCircuit(WorkerContext context, TaskData task, boolean success) {
+        context.categoryCircuit.record(success);
+        CircuitBreakerParams params = context.circuitParams;
+        CircuitBreaker circuit = params != null
+                ? context.classCircuits.computeIfAbsent(task.getTaskClass(),
+                        c -> new CircuitBreaker(task.getCategory(), c, params, clock))
+                : context.classCircuits.get(task.getTaskClass());
+        if (circuit != null) {
+            circuit.record(success);
+        }
+    }
+
+    /**
+     * Захватывает до claimSize готовых задач через хранилище.
+     * excludedClasses и onlyClass сужают выборку для выключателей.
+     */
+    private List<TaskData> fetchAndLockTasks(String category, int claimSize,
+                                             List<String> excludedClasses, String onlyClass) {
+        TaskEvents.ClaimEvent event = new TaskEvents.ClaimEvent();
+        event.begin();
+        List<TaskData> tasks;
+        try {
+            tasks = store.claim(category, claimSize, clock.millis(), excludedClasses, onlyClass);
         } catch (SQLException ex) {
             logger.error("Failed to fetch and lock tasks for category: " + category, ex);
             throw new RuntimeException("Database error while fetching tasks", ex);
         }
+        logger.trace("Locked {} tasks for processing in category: {}", tasks.size(), category);
+        if (event.shouldCommit()) {
+            event.category = category;
+            event.claimSize = claimSize;
+            event.claimed = tasks.size();
+            event.commit();
+        }
         return tasks;
     }
 
-    private void processTaskWithRetry(TaskData task) {
-        if (shutdownFlag.get()) {
+    private void processTaskWithRetry(WorkerContext context, TaskData task) {
+        if (context.draining || !startQueuedTask(context, task)) {
             return;
         }
 
         logger.info("Processing task {} [{}] in category: {}",
                 task.getId(), task.getTaskClass(), task.getCategory());
 
-        try (Connection conn = dataSource.getConnection()) {
-            conn.setAutoCommit(false);
+        // Соединение не удерживается, пока выполняется пользовательский код:
+        // исход пишется отдельной короткой транзакцией после выполнения
+        TaskExecution execution = new TaskExecution(Thread.currentThread());
+        TaskEvents.ExecuteEvent event = beginExecuteEvent();
+        TaskCostTracker.Sample cost = costTracker.begin(task);
+        Exception failure = null;
+        try {
+            executeTask(context, task, execution);
+        } catch (Exception ex) {
+            failure = ex;
+        }
+        costTracker.end(cost, 1);
+        commitExecuteEvent(event, task, 1, failure);
+
+        if (!execution.finish()) {
+            // Исход уже записан сторожем таймаута
+            if (execution.isCompensated()) {
+                resizePool(context, -1);
+            }
+            logger.warn("Task {} returned after its timeout, result discarded", task.getId());
+            return;
+        }
+
+        recordCircuit(context, task, failure == null);
+        if (!tryLocalRetry(context, task, failure)) {
+            recordOutcome(context, task, failure);
+        }
+    }
 
+    /**
+     * Начатое событие выполнения или null, если запись JFR выключена: тогда на задачу
+     * не создаётся ни одного объекта события
+     */
+    private static TaskEvents.ExecuteEvent beginExecuteEvent() {
+        if (!EXECUTE_EVENT_PROBE.isEnabled()) {
+            return null;
+        }
+        TaskEvents.ExecuteEvent event = new TaskEvents.ExecuteEvent();
+        event.begin();
+        return event;
+    }
+
+    private void commitExecuteEvent(TaskEvents.ExecuteEvent event, TaskData task, int batchSize, Exception failure) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.category = task.getCategory();
+            event.taskClass = task.getTaskClass();
+            event.taskId = task.getId();
+            event.batchSize = batchSize;
+            event.outcome = TaskEvents.outcomeOf(failure);
+            event.commit();
+        }
+    }
+
+    /**
+     * Короткий повтор без возврата задачи в базу: захват сохраняется, задача ждёт
+     * в локальной очереди задержек, а в базу пишется только итоговый исход.
+     * Таймауты, последние попытки и длинные задержки идут обычным путём через базу.
+     */
+    private boolean tryLocalRetry(WorkerContext context, TaskData task, Exception failure) {
+        if (failure == null || failure instanceof TimeoutException || context.draining) {
+            return false;
+        }
+        int nextAttempt = task.getAttemptCount() + 1;
+        if (nextAttempt >= task.getMaxAttempts()) {
+            return false;
+        }
+        long delay = calculateRetryDelay(context, task, nextAttempt);
+        if (delay > LOCAL_RETRY_MAX_DELAY_MS) {
+            return false;
+        }
+
+        logger.warn("Task {} failed (attempt {} of {}), retrying locally in {} ms. Error: {}",
+                task.getId(), nextAttempt, task.getMaxAttempts(), delay, failure.getMessage());
+        localRetries.labels(task.getCategory(), task.getTaskClass()).inc();
+
+        LocalRetry retry = new LocalRetry(task.withAttemptCount(nextAttempt), clock.millis() + delay);
+        context.localRetries.put(task.getId(), retry);
+        retry.future = timeoutScheduler.schedule(() -> fireLocalRetry(context, task.getId()),
+                delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void fireLocalRetry(WorkerContext context, long taskId) {
+        if (context.draining) {
+            // Задачу заберёт persistLocalRetries
+            return;
+        }
+        LocalRetry retry = context.localRetries.get(taskId);
+        if (retry == null) {
+            return;
+        }
+        TaskData task = retry.task;
+        Class<?> clazz = loadTaskClass(task.getTaskClass());
+        boolean async = clazz != null && AsyncTask.class.isAssignableFrom(clazz);
+
+        // Очередь пула заполнена или все разрешения асинхронных задач заняты: ни поток таймеров,
+        // ни поток воркера не ждут, передача откладывается. Разрешения освобождают завершения
+        // в потоках того же пула, поэтому ожидание в нём могло бы не закончиться никогда.
+        if (context.executor.getQueue().remainingCapacity() == 0
+                || (async && !context.asyncPermits.tryAcquire())) {
+            retry.future = timeoutScheduler.schedule(() -> fireLocalRetry(context, taskId),
+                    LOCAL_RETRY_REQUEUE_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        if (context.localRetries.remove(taskId) == null) {
+            // Повтор отменили, пока проверялась очередь
+            if (async) {
+                context.asyncPermits.release();
+            }
+            return;
+        }
+        context.queuedTasks.put(task.getId(), task);
+        if (async) {
+            context.executor.execute(() -> runAsyncTask(context, task));
+        } else {
+            context.executor.execute(() -> processTaskWithRetry(context, task));
+        }
+    }
+
+    /**
+     * При остановке воркера записывает ожидающие локальные повторы в базу
+     * как обычные отложенные повторы с оставшейся задержкой.
+     */
+    private void persistLocalRetries(WorkerContext context, String category) {
+        if (context.localRetries.isEmpty()) {
+            return;
+        }
+
+        int persisted = 0;
+        for (Long taskId : new ArrayList<>(context.localRetries.keySet())) {
+            LocalRetry retry = context.localRetries.remove(taskId);
+            if (retry == null) {
+                continue;
+            }
+            if (retry.future != null) {
+                retry.future.cancel(false);
+            }
             try {
-                executeTask(task);
-                markTaskCompleted(conn, task);
-                conn.commit();
-                logger.info("Task {} completed successfully", task.getId());
-            } catch (Exception ex) {
-                conn.rollback();
-                handleTaskFailure(conn, task, ex);
+                scheduleRetry(retry.task, retry.task.getAttemptCount(),
+                        Math.max(0, retry.dueAt - clock.millis()));
+                persisted++;
+            } catch (SQLException ex) {
+                logger.error("Failed to persist local retry of task {}", taskId, ex);
             }
-        } catch (SQLException sqlEx) {
-            logger.error("Database error processing task {}", task.getId(), sqlEx);
         }
+        logger.info("Persisted {} local retries of category {}", persisted, category);
     }
 
-    private void executeTask(TaskData task) throws Exception {
+    private long resolveTimeoutMs(WorkerContext context, Task taskInstance) {
+        long classTimeout = taskInstance.getTimeoutMs();
+        return classTimeout > 0 ? classTimeout : context.workerParams.getTaskTimeoutMs();
+    }
+
+    /**
+     * Срабатывает по истечении таймаута: прерывает поток задачи и отправляет её
+     * в обычную обработку ошибок. Если задача игнорирует прерывание, пул категории
+     * временно получает замещающий поток, чтобы зависшая задача не съедала пропускную способность.
+     * В потоке таймеров остаётся только прерывание: запись в базу идёт в пуле категории,
+     * чтобы медленная база не задерживала таймауты остальных задач.
+     */
+    private void onTaskTimeout(WorkerContext context, TaskData task, TaskExecution execution, long timeoutMs) {
+        if (!execution.timeout()) {
+            return;
+        }
+
+        taskTimeouts.labels(task.getCategory(), task.getTaskClass()).inc();
+        logger.warn("Task {} exceeded timeout of {} ms, interrupting", task.getId(), timeoutMs);
+        recordTimeoutOutcome(context, task, timeoutMs);
+
+        timeoutScheduler.schedule(() -> {
+            if (execution.compensateIfStuck()) {
+                logger.warn("Task {} ignores interrupt, adding replacement thread to category {}",
+                        task.getId(), task.getCategory());
+                resizePool(context, 1);
+            }
+        }, STUCK_TASK_GRACE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void recordTimeoutOutcome(WorkerContext context, TaskData task, long timeoutMs) {
+        // При заполненной очереди CallerRunsPolicy выполнила бы запись в потоке таймеров
+        if (!context.executor.isShutdown() && context.executor.getQueue().remainingCapacity() == 0) {
+            timeoutScheduler.schedule(() -> recordTimeoutOutcome(context, task, timeoutMs),
+                    LOCAL_RETRY_REQUEUE_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        executeInPool(context, () -> {
+            recordCircuit(context, task, false);
+            recordOutcome(context, task, new TimeoutException("Task execution exceeded " + timeoutMs + " ms"));
+        });
+    }
+
+    private void resizePool(WorkerContext context, int delta) {
+        synchronized (context) {
+            ThreadPoolExecutor executor = context.executor;
+            int size = executor.getCorePoolSize() + delta;
+            if (delta > 0) {
+                executor.setMaximumPoolSize(size);
+                executor.setCorePoolSize(size);
+            } else {
+                executor.setCorePoolSize(size);
+                executor.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    private void processBatch(WorkerContext context, List<TaskData> claimed) {
+        if (context.draining) {
+            return;
+        }
+
+        List<TaskData> batch = new ArrayList<>(claimed.size());
+        for (TaskData task : claimed) {
+            if (startQueuedTask(context, task)) {
+                batch.add(task);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        String taskClass = batch.get(0).getTaskClass();
+        logger.info("Processing batch of {} tasks [{}] in category: {}",
+                batch.size(), taskClass, batch.get(0).getCategory());
+
+        TaskEvents.ExecuteEvent event = beginExecuteEvent();
+        TaskCostTracker.Sample cost = costTracker.begin(batch.get(0));
+        Map<Integer, Exception> failures;
+        try {
+            BatchTask taskInstance = (BatchTask) taskConstructor(taskClass).newInstance();
+            List<TaskParams> params = new ArrayList<>(batch.size());
+            for (TaskData task : batch) {
+                params.add(toTaskParams(task));
+            }
+            failures = taskInstance.executeBatch(params);
+            if (failures == null) {
+                failures = Map.of();
+            }
+        } catch (Exception ex) {
+            failures = new HashMap<>();
+            for (int i = 0; i < batch.size(); i++) {
+                failures.put(i, ex);
+            }
+        }
+        costTracker.end(cost, batch.size());
+        commitExecuteEvent(event, batch.get(0), batch.size(),
+                failures.isEmpty() ? null : failures.values().iterator().next());
+
+        TaskEvents.OutcomeEvent outcomeEvent = new TaskEvents.OutcomeEvent();
+        outcomeEvent.begin();
+
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                TaskData task = batch.get(i);
+                Exception failure = failures.get(i);
+                recordCircuit(context, task, failure == null);
+                if (failure != null) {
+                    handleTaskFailure(context, task, failure);
+                    continue;
+                }
+                try {
+                    store.complete(task);
+                } catch (SQLException sqlEx) {
+                    // Как и для одиночной задачи: иначе задача осталась бы в PROCESSING до сверки
+                    logger.error("Failed to mark task {} completed", task.getId(), sqlEx);
+                    handleTaskFailure(context, task, sqlEx);
+                }
+            }
+            logger.info("Batch of {} tasks finished, {} failed", batch.size(), failures.size());
+        } finally {
+            if (outcomeEvent.shouldCommit()) {
+                outcomeEvent.category = batch.get(0).getCategory();
+                outcomeEvent.taskId = batch.get(0).getId();
+                outcomeEvent.outcome = failures.isEmpty() ? "SUCCESS" : "BATCH_PARTIAL";
+                outcomeEvent.commit();
+            }
+        }
+    }
+
+    private void executeTask(WorkerContext context, TaskData task, TaskExecution execution) throws Exception {
         logger.debug("Executing task {} with class {}", task.getId(), task.getTaskClass());
 
-        Class<?> clazz = Class.forName(task.getTaskClass());
-        if (!Task.class.isAssignableFrom(clazz)) {
+        Constructor<?> constructor = taskConstructor(task.getTaskClass());
+        if (!Task.class.isAssignableFrom(constructor.getDeclaringClass())) {
             throw new IllegalArgumentException("Class " + task.getTaskClass() +
                     " does not implement Task interface");
         }
 
-        Task taskInstance = (Task) clazz.getDeclaredConstructor().newInstance();
-        TaskParams params = new TaskParams(
-                task.getParams(),
+        Task taskInstance = (Task) constructor.newInstance();
+        long timeoutMs = resolveTimeoutMs(context, taskInstance);
+        ScheduledFuture<?> watchdog = timeoutMs > 0
+                ? timeoutScheduler.schedule(() -> onTaskTimeout(context, task, execution, timeoutMs),
+                        timeoutMs, TimeUnit.MILLISECONDS)
+                : null;
+        try {
+            taskInstance.execute(toTaskParams(task));
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Параметры для выполнения; вынесенные в отдельную таблицу данные читаются здесь,
+     * а не при захвате, чтобы строки захвата оставались маленькими
+     */
+    private TaskParams toTaskParams(TaskData task) throws SQLException {
+        String json;
+        if (TaskPayloads.isOffloaded(task.getParams())) {
+            json = store.loadOffloadedParams(task);
+        } else {
+            json = TaskPayloads.decode(task.getParams());
+        }
+        return TaskParams.fromStored(
+                json,
                 task.getMaxAttempts(),
                 task.isExponentialBackoff(),
                 task.getBackoffBase(),
                 task.getMaxBackoffMs()
         );
-
-        taskInstance.execute(params);
     }
 
-    private void markTaskCompleted(Connection conn, TaskData task) throws SQLException {
-        String sql = "UPDATE deferred_" + task.getCategory() +
-                " SET status = 'COMPLETED', attempt_count = attempt_count + 1, " +
-                "completed_at = CURRENT_TIMESTAMP " +
-                "WHERE id = ?";
-
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setLong(1, task.getId());
-            int updated = stmt.executeUpdate();
-            if (updated != 1) {
-                logger.warn("Expected to update 1 row for task {}, but updated {}",
-                        task.getId(), updated);
-            }
-        }
-    }
-
-    private void handleTaskFailure(Connection conn, TaskData task, Exception ex) {
+    private void handleTaskFailure(WorkerContext context, TaskData task, Exception ex) {
         int nextAttempt = task.getAttemptCount() + 1;
         logger.warn("Task {} failed (attempt {} of {}). Error: {}",
                 task.getId(), nextAttempt, task.getMaxAttempts(), ex.getMessage());
 
         try {
             if (nextAttempt >= task.getMaxAttempts()) {
-                markTaskFailed(conn, task);
+                store.deadLetter(task, ex);
+                logger.error("Task {} moved to dead-letter queue after maximum attempts", task.getId());
             } else {
-                scheduleRetry(conn, task, nextAttempt);
+                scheduleRetry(task, nextAttempt, calculateRetryDelay(context, task, nextAttempt));
             }
-            conn.commit();
         } catch (SQLException sqlEx) {
             logger.error("Failed to handle task failure for task {}", task.getId(), sqlEx);
-            try {
-                conn.rollback();
-            } catch (SQLException rollbackEx) {
-                logger.error("Failed to rollback transaction", rollbackEx);
-            }
         }
     }
 
-    private void markTaskFailed(Connection conn, TaskData task) throws SQLException {
-        String sql = "UPDATE deferred_" + task.getCategory() +
-                " SET status = 'FAILED', attempt_count = attempt_count + 1 " +
-                "WHERE id = ?";
-
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setLong(1, task.getId());
-            stmt.executeUpdate();
-            logger.error("Task {} marked as FAILED after maximum attempts", task.getId());
-        }
+    private void scheduleRetry(TaskData task, int nextAttempt, long delay) throws SQLException {
+        long nextAttemptMillis = clock.millis() + delay;
+        store.retry(task, nextAttempt, nextAttemptMillis);
+        logger.info("Scheduled retry #{} for task {} at {}",
+                nextAttempt, task.getId(), new Timestamp(nextAttemptMillis));
     }
 
-    private void scheduleRetry(Connection conn, TaskData task, int nextAttempt) throws SQLException {
-        long delay = calculateRetryDelay(task, nextAttempt);
-        LocalDateTime nextAttemptTime = LocalDateTime.now().plus(delay, ChronoUnit.MILLIS);
-
-        String sql = "UPDATE deferred_" + task.getCategory() +
-                " SET status = 'PENDING', attempt_count = ?, " +
-                "next_attempt_time = ? WHERE id = ?";
-
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, nextAttempt);
-            stmt.setTimestamp(2, Timestamp.valueOf(nextAttemptTime));
-            stmt.setLong(3, task.getId());
-            stmt.executeUpdate();
-
-            logger.info("Scheduled retry #{} for task {} at {}",
-                    nextAttempt, task.getId(), nextAttemptTime);
+    /**
+     * Задержка перед повтором: политика класса задачи, иначе политика категории
+     * из {@link RetryPolicyParam}. Поля повторов самой задачи используются, только
+     * если воркер запущен без политики категории.
+     */
+    private long calculateRetryDelay(WorkerContext context, TaskData task, int attempt) {
+        RetryPolicy policy = classRetryPolicy(task.getTaskClass()).orElse(null);
+        if (policy == null && context.retryParams != null) {
+            policy = context.retryParams.toRetryPolicy();
         }
-    }
-
-    private long calculateRetryDelay(TaskData task, int attempt) {
-        if (!task.isExponentialBackoff()) {
-            return task.getMaxBackoffMs();
+        if (policy == null) {
+            policy = RetryPolicy.backoff(task.isExponentialBackoff(), task.getBackoffBase(),
+                    task.getMaxBackoffMs(), RetryPolicy.Jitter.EQUAL);
         }
+        return Math.max(0, policy.delayMs(attempt));
+    }
 
-        long delay = (long) (Math.pow(task.getBackoffBase(), attempt) * 1000);
-        return Math.min(delay, task.getMaxBackoffMs());
+    private Optional<RetryPolicy> classRetryPolicy(String taskClass) {
+        return classRetryPolicies.computeIfAbsent(taskClass, name -> {
+            try {
+                Object instance = taskConstructor(name).newInstance();
+                return instance instanceof Task task
+                        ? Optional.ofNullable(task.getRetryPolicy())
+                        : Optional.empty();
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                logger.warn("Cannot read retry policy of task class {}: {}", name, ex.getMessage());
+                return Optional.empty();
+            }
+        });
     }
 
     @Override
     public void destroy(String category) {
-        logger.info("Shutting down worker for category: {}", category);
-        shutdownFlag.set(true);
+        drain(category, DEFAULT_DRAIN_TIMEOUT_MS);
+    }
 
+    /**
+     * Останавливает только эту категорию: прекращает захват, даёт уже начатым
+     * задачам завершиться до дедлайна и одним UPDATE возвращает в PENDING
+     * захваченные, но не начатые задачи. Остальные категории продолжают работу.
+     */
+    @Override
+    public void drain(String category, long timeoutMs) {
         WorkerContext context = workerContexts.remove(category);
         if (context == null) {
             return;
         }
 
-        shutdownExecutor(context.executor, "Worker-" + category);
+        logger.info("Draining worker for category: {}", category);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        context.draining = true;
+        if (context.autoscaleTask != null) {
+            context.autoscaleTask.cancel(false);
+        }
+        if (context.reconcileTask != null) {
+            context.reconcileTask.cancel(false);
+        }
+        synchronized (context) {
+            if (context.pollTask != null) {
+                context.pollTask.cancel(false);
+            }
+        }
+        // Дожидаемся опроса, который мог начаться до остановки
+        context.pollLock.lock();
+        context.pollLock.unlock();
+
         shutdownExecutor(context.scheduler, "Scheduler-" + category);
+        awaitAsyncTasks(context, category, deadline);
+        awaitExecutor(context.executor, "Worker-" + category, deadline);
+        persistLocalRetries(context, category);
+        returnUnstartedTasks(context, category);
 
         logger.info("Worker for category {} shutdown complete", category);
     }
 
+    private void awaitAsyncTasks(WorkerContext context, String category, long deadline) {
+        int maxInFlight = context.workerParams.getMaxInFlightAsync();
+        try {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            if (!context.asyncPermits.tryAcquire(maxInFlight, remaining, TimeUnit.MILLISECONDS)) {
+                logger.warn("{} async tasks of category {} still running at shutdown",
+                        maxInFlight - context.asyncPermits.availablePermits(), category);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitExecutor(ExecutorService executor, String name, long deadline) {
+        executor.shutdown();
+        try {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            if (!executor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    logger.error("{} did not terminate properly", name);
+                }
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Возвращает в PENDING задачи, которые были захвачены, но так и не начались
+     */
+    private void returnUnstartedTasks(WorkerContext context, String category) {
+        List<Long> ids = new ArrayList<>(context.queuedTasks.keySet());
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        try {
+            int returned = store.returnUnstarted(category, ids);
+            context.queuedTasks.clear();
+            logger.info("Returned {} unstarted tasks of category {} to PENDING", returned, category);
+        } catch (SQLException ex) {
+            logger.error("Failed to return unstarted tasks of category " + category, ex);
+        }
+    }
+
     private void shutdownExecutor(ExecutorService executor, String name) {
         if (executor == null) {
             return;
@@ -320,15 +1337,116 @@ public class WorkerManagerImpl implements WorkerManager {
         }
     }
 
+    /**
+     * Источник потоков воркера: планировщики опроса и обслуживания и пулы категорий
+     */
+    public interface ThreadSource {
+
+        ThreadSource SYSTEM = new ThreadSource() {
+            @Override
+            public ScheduledExecutorService newScheduler(String name, int threads) {
+                return threads == 1
+                        ? Executors.newSingleThreadScheduledExecutor(new SchedulerThreadFactory(name))
+                        : Executors.newScheduledThreadPool(threads, new SchedulerThreadFactory(name));
+            }
+
+            @Override
+            public ThreadPoolExecutor newWorkerPool(String category, int threads, int queueCapacity) {
+                return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(queueCapacity), new WorkerThreadFactory(category));
+            }
+        };
+
+        ScheduledExecutorService newScheduler(String name, int threads);
+
+        ThreadPoolExecutor newWorkerPool(String category, int threads, int queueCapacity);
+    }
+
+    private static class LocalRetry {
+        final TaskData task;
+        final long dueAt;
+        volatile ScheduledFuture<?> future;
+
+        LocalRetry(TaskData task, long dueAt) {
+            this.task = task;
+            this.dueAt = dueAt;
+        }
+    }
+
     private static class WorkerContext {
         final WorkerParams workerParams;
         final RetryPolicyParam retryParams;
+        final Semaphore asyncPermits;
+        final ConcurrentMap<Long, TaskData> queuedTasks = new ConcurrentHashMap<>();
+        final Set<Long> cancelledTaskIds = ConcurrentHashMap.newKeySet();
+        final ConcurrentMap<Long, LocalRetry> localRetries = new ConcurrentHashMap<>();
+        final CircuitBreaker categoryCircuit;
+        final ConcurrentMap<String, CircuitBreaker> classCircuits = new ConcurrentHashMap<>();
+        volatile CircuitBreakerParams circuitParams;
         ThreadPoolExecutor executor;
         ScheduledExecutorService scheduler;
+        ScheduledFuture<?> autoscaleTask;
+        ScheduledFuture<?> reconcileTask;
+        ScheduledFuture<?> pollTask;
+        long nextPollAt;
+        final Lock pollLock = new ReentrantLock();
+        volatile boolean draining;
+        volatile int threadCount;
+        volatile int claimSize = DEFAULT_CLAIM_SIZE;
+        volatile int lastClaimCount;
+        volatile long lastDispatchLagMs;
 
-        WorkerContext(WorkerParams workerParams, RetryPolicyParam retryParams) {
+        WorkerContext(WorkerParams workerParams, RetryPolicyParam retryParams, Clock clock) {
             this.workerParams = workerParams;
             this.retryParams = retryParams;
+            this.threadCount = workerParams.getThreadCount();
+            this.asyncPermits = new Semaphore(workerParams.getMaxInFlightAsync());
+            this.categoryCircuit = new CircuitBreaker(workerParams.getCategory(), CircuitBreaker.CATEGORY_SCOPE, null, clock);
+        }
+    }
+
+    /**
+     * Состояние одного выполнения задачи, разделяемое потоком воркера и сторожем таймаута.
+     * Исход записывает тот, кто первым завершит выполнение: сама задача или таймаут.
+     */
+    private static class TaskExecution {
+        private final Thread worker;
+        private boolean finished;
+        private boolean timedOut;
+        private boolean compensated;
+
+        TaskExecution(Thread worker) {
+            this.worker = worker;
+        }
+
+        synchronized boolean finish() {
+            finished = true;
+            if (timedOut) {
+                Thread.interrupted();
+                return false;
+            }
+            return true;
+        }
+
+        synchronized boolean timeout() {
+            if (finished) {
+                return false;
+            }
+            timedOut = true;
+            worker.interrupt();
+            return true;
+        }
+
+        synchronized boolean compensateIfStuck() {
+            if (finished) {
+                return false;
+            }
+            compensated = true;
+            return true;
+        }
+
+        synchronized boolean isCompensated() {
+            return compensated;
         }
     }
 
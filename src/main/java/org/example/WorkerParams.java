@@ -1,12 +1,34 @@
 package org.example;
 
 public class WorkerParams {
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final int DEFAULT_MAX_IN_FLIGHT_ASYNC = 1000;
+
     private final String category;
     private final int threadCount;
+    private final int batchSize;
+    private final int maxInFlightAsync;
+    private final long taskTimeoutMs;
 
     public WorkerParams(String category, int threadCount) {
+        this(category, threadCount, DEFAULT_BATCH_SIZE);
+    }
+
+    public WorkerParams(String category, int threadCount, int batchSize) {
+        this(category, threadCount, batchSize, DEFAULT_MAX_IN_FLIGHT_ASYNC);
+    }
+
+    public WorkerParams(String category, int threadCount, int batchSize, int maxInFlightAsync) {
+        this(category, threadCount, batchSize, maxInFlightAsync, 0);
+    }
+
+    public WorkerParams(String category, int threadCount, int batchSize,
+                        int maxInFlightAsync, long taskTimeoutMs) {
         this.category = category;
         this.threadCount = threadCount;
+        this.batchSize = batchSize;
+        this.maxInFlightAsync = maxInFlightAsync;
+        this.taskTimeoutMs = taskTimeoutMs;
     }
 
     public String getCategory() {
@@ -16,4 +38,26 @@ public class WorkerParams {
     public int getThreadCount() {
         return threadCount;
     }
-}
+
+    /**
+     * Максимальный размер пачки, передаваемой в {@link BatchTask}
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Сколько {@link AsyncTask} категории может выполняться одновременно,
+     * независимо от числа потоков
+     */
+    public int getMaxInFlightAsync() {
+        return maxInFlightAsync;
+    }
+
+    /**
+     * Таймаут выполнения задач категории по умолчанию, 0 - без таймаута
+     */
+    public long getTaskTimeoutMs() {
+        return taskTimeoutMs;
+    }
+}
\ No newline at end of file